@@ -0,0 +1,125 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.Timestamps;
+
+/**
+ * Measures the time from {@link EventLoop#broadcast(ByteBuffer)} until the
+ * last of the loopback subscribers has received the message.
+ *
+ * NOTE: 10000 subscribers need about 20000 file descriptors, raise the limit
+ * with "ulimit -n" before running the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+	@Param({ "1", "100", "1000", "10000" })
+	public int clients;
+
+	private EventLoop loop;
+	private Thread loopThread;
+	private SocketChannel[] subscribers;
+	private ByteBuffer frame;
+	private ByteBuffer readBuffer;
+
+	@Setup
+	public void setup() throws IOException {
+		// all subscribers connect at once from the same address
+		Config config = new Config();
+		config.backlog = clients;
+		config.acceptRate = 0;
+		config.maxConnections = 0;
+		config.maxConnectionsPerAddress = 0;
+		// the subscribers only read events and never answer a ping, no heartbeat
+		// may happen during the run
+		config.heartbeatInterval = (int) TimeUnit.HOURS.toMillis(1);
+		config.heartbeatTimeout = (int) TimeUnit.HOURS.toMillis(2);
+		loop = new EventLoop(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), config);
+		loopThread = new Thread(loop, "event-loop");
+		loopThread.start();
+
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), loop.getLocalPort());
+		ByteBuffer hello = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+		Protocol.writeHello(hello);
+		// the welcome is followed by the names of the channels
+		ByteBuffer welcome = ByteBuffer
+				.allocate(Protocol.HEADER_SIZE + 12 + Protocol.namesSize(new String[] { "klingel" }));
+		subscribers = new SocketChannel[clients];
+		for (int i = 0; i < clients; i++) {
+			subscribers[i] = SocketChannel.open(address);
+			hello.flip();
+			subscribers[i].write(hello);
+			welcome.clear();
+			read(subscribers[i], welcome);
+		}
+
+		frame = EventLoop.event(Protocol.RING, 1, Timestamps.nowMicros(), 0);
+		readBuffer = ByteBuffer.allocateDirect(frame.remaining());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		for (SocketChannel subscriber : subscribers) {
+			subscriber.close();
+		}
+		loop.close();
+		loopThread.join();
+	}
+
+	@Benchmark
+	public void broadcastToAll() throws IOException {
+		loop.broadcast(frame);
+		for (SocketChannel subscriber : subscribers) {
+			readBuffer.clear();
+			read(subscriber, readBuffer);
+		}
+	}
+
+	private static void read(SocketChannel subscriber, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (subscriber.read(buffer) < 0) {
+				throw new IOException("subscriber was disconnected");
+			}
+		}
+	}
+}
@@ -0,0 +1,440 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import dev.holzinger.pibell.common.Frame;
+import dev.holzinger.pibell.common.LatencyHistogram;
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.Timestamps;
+
+/**
+ * Load test of a complete server process with thousands of simulated clients
+ * on localhost, to find out how many clients a machine can serve before the
+ * latency of a ring degrades.
+ *
+ * The server under test runs as a child process in relay mode. Its upstream is
+ * an {@link EventLoop} in this JVM which publishes the ring bursts, so the
+ * events arrive at exact times without gpio hardware. The simulated clients
+ * are plain sockets handled by a few selector threads. The reported latency is
+ * the time from publishing the ring until a client read it, it includes the
+ * hop from the upstream to the server under test.
+ *
+ * Server CPU and memory are read from /proc, so the test only runs on linux.
+ * Raise the file descriptor limit with "ulimit -n" for more than about 500
+ * clients.
+ */
+public class SwarmLoadTest {
+
+	// USER_HZ, the unit of the cpu times in /proc/PID/stat on all common linux
+	// systems
+	private static final int CLOCK_TICKS = 100;
+
+	private int clients = 1000;
+	private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private int bursts = 20;
+	private int burstSize = 10;
+	private int burstInterval = 1000;
+	private int drainTimeout = 5000;
+	private final List<String> serverArgs = new ArrayList<String>();
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder disconnects = new LongAdder();
+	private final AtomicInteger welcomed = new AtomicInteger();
+
+	/**
+	 * State of one simulated client, only used by its swarm thread.
+	 */
+	private static class Subscriber {
+		final SocketChannel channel;
+		final ByteBuffer input = ByteBuffer.allocate(256);
+		// bit n is set when the event with sequence number n was received
+		final BitSet sequences = new BitSet();
+
+		Subscriber(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Selector thread which reads the events of its share of the clients.
+	 */
+	private class Swarm implements Runnable {
+		final Selector selector;
+		final Queue<Subscriber> pending = new ConcurrentLinkedQueue<Subscriber>();
+		final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+		final Frame frame = new Frame();
+		final ByteBuffer pong = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+		volatile boolean running = true;
+
+		Swarm() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(Subscriber subscriber) {
+			pending.offer(subscriber);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select(100);
+					Subscriber subscriber;
+					while ((subscriber = pending.poll()) != null) {
+						subscriber.channel.register(selector, SelectionKey.OP_READ, subscriber);
+						subscribers.add(subscriber);
+					}
+					for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (key.isValid() && key.isReadable()) {
+							read((Subscriber) key.attachment(), key);
+						}
+					}
+				}
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void read(Subscriber subscriber, SelectionKey key) {
+			try {
+				if (subscriber.channel.read(subscriber.input) < 0) {
+					throw new IOException("Verbindung getrennt");
+				}
+				long now = Timestamps.nowMicros();
+				subscriber.input.flip();
+				while (frame.read(subscriber.input)) {
+					if (Protocol.isEvent(frame.getType())) {
+						latency.record(now - frame.getTimestamp());
+						received.increment();
+						int sequence = (int) frame.getSequence();
+						if (subscriber.sequences.get(sequence)) {
+							duplicates.increment();
+						}
+						subscriber.sequences.set(sequence);
+					} else if (frame.getType() == Protocol.WELCOME) {
+						welcomed.incrementAndGet();
+					} else if (frame.getType() == Protocol.PING) {
+						pong.clear();
+						Protocol.writePong(pong);
+						pong.flip();
+						subscriber.channel.write(pong);
+					}
+				}
+				subscriber.input.compact();
+			} catch (IOException e) {
+				disconnects.increment();
+				key.cancel();
+				try {
+					subscriber.channel.close();
+				} catch (IOException e1) {
+					// ignore errors
+				}
+			}
+		}
+	}
+
+	private static String usage() {
+		return "SwarmLoadTest [OPTIONS] [-- SERVER_OPTIONS]\n"
+				+ "  --clients N          Anzahl der simulierten Clients (1000)\n"
+				+ "  --threads N          Threads für die Clients (Hälfte der Prozessoren)\n"
+				+ "  --bursts N           Anzahl der Klingel Schübe (20)\n"
+				+ "  --burst-size N       Klingeln pro Schub, direkt nacheinander (10)\n"
+				+ "  --burst-interval MS  Abstand der Schübe (1000)\n"
+				+ "  --drain-timeout MS   Wartezeit auf die letzten Events (5000)\n"
+				+ "Die Optionen nach -- werden an den Server übergeben, z.B. -- --queue-size 4\n";
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--")) {
+				for (i++; i < args.length; i++) {
+					serverArgs.add(args[i]);
+				}
+				return;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Fehlender Wert für " + args[i]);
+			}
+			int value;
+			try {
+				value = Integer.parseInt(args[i + 1]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Keine Zahl für " + args[i] + ": " + args[i + 1]);
+			}
+			if (value < 0) {
+				throw new IllegalArgumentException("Negativer Wert für " + args[i]);
+			}
+			switch (args[i]) {
+				case "--clients":
+					clients = value;
+					break;
+				case "--threads":
+					threads = Math.max(1, value);
+					break;
+				case "--bursts":
+					bursts = value;
+					break;
+				case "--burst-size":
+					burstSize = value;
+					break;
+				case "--burst-interval":
+					burstInterval = value;
+					break;
+				case "--drain-timeout":
+					drainTimeout = value;
+					break;
+				default:
+					throw new IllegalArgumentException("Unbekannte Option " + args[i]);
+			}
+			i++;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		SwarmLoadTest test = new SwarmLoadTest();
+		try {
+			test.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.print(usage());
+			System.exit(1);
+		}
+		test.run();
+	}
+
+	private void run() throws Exception {
+		// the upstream logs every event on info
+		Log.setLevel(Log.Level.WARN);
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		Config upstreamConfig = new Config();
+		upstreamConfig.acceptRate = 0;
+		EventLoop upstream = new EventLoop(new InetSocketAddress(loopback, 0), upstreamConfig);
+		Thread upstreamThread = new Thread(upstream, "upstream");
+		upstreamThread.start();
+
+		Process server = null;
+		Swarm[] swarms = new Swarm[threads];
+		List<Thread> swarmThreads = new ArrayList<Thread>();
+		try {
+			int port;
+			try (ServerSocket socket = new ServerSocket(0, 1, loopback)) {
+				port = socket.getLocalPort();
+			}
+			List<String> command = new ArrayList<String>();
+			command.add(ProcessHandle.current().info().command().orElse("java"));
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(Server.class.getName());
+			command.add("--relay");
+			command.add(loopback.getHostAddress() + ":" + upstream.getLocalPort());
+			// the swarm connects at once from a single address
+			for (String option : new String[] { "--accept-rate", "--max-connections", "--max-connections-per-address" }) {
+				command.add(option);
+				command.add("0");
+			}
+			command.add("--backlog");
+			command.add(String.valueOf(Math.max(128, clients)));
+			command.add("--log-level");
+			command.add("warn");
+			command.addAll(serverArgs);
+			command.add(loopback.getHostAddress() + ":" + port);
+			server = new ProcessBuilder(command).inheritIO().start();
+
+			InetSocketAddress address = new InetSocketAddress(loopback, port);
+			waitForServer(server, address);
+			for (int i = 0; i < threads; i++) {
+				swarms[i] = new Swarm();
+				Thread thread = new Thread(swarms[i], "swarm-" + i);
+				thread.start();
+				swarmThreads.add(thread);
+			}
+
+			long connectStart = System.nanoTime();
+			ByteBuffer hello = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+			List<Subscriber> subscribers = new ArrayList<Subscriber>();
+			for (int i = 0; i < clients; i++) {
+				SocketChannel channel = SocketChannel.open(address);
+				hello.clear();
+				Protocol.writeHello(hello);
+				hello.flip();
+				channel.write(hello);
+				channel.configureBlocking(false);
+				Subscriber subscriber = new Subscriber(channel);
+				subscribers.add(subscriber);
+				swarms[i % threads].add(subscriber);
+			}
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (welcomed.get() + disconnects.intValue() < clients && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			System.out.printf("%d Clients in %d ms verbunden, %d mit Willkommen%n", clients,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart), welcomed.get());
+
+			long[] cpuStart = cpuTicks(server.pid());
+			long[] selfStart = cpuTicks(ProcessHandle.current().pid());
+			long start = System.nanoTime();
+			long first = 0;
+			long last = 0;
+			for (int burst = 0; burst < bursts; burst++) {
+				if (burst > 0) {
+					Thread.sleep(burstInterval);
+				}
+				for (int i = 0; i < burstSize; i++) {
+					last = upstream.publish(Protocol.RING, Timestamps.nowMicros(), 0);
+					if (first == 0) {
+						first = last;
+					}
+				}
+			}
+			long published = first == 0 ? 0 : last - first + 1;
+			long expected = published * welcomed.get();
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+			while (received.sum() < expected && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long[] cpuEnd = cpuTicks(server.pid());
+			long[] selfEnd = cpuTicks(ProcessHandle.current().pid());
+			long[] memory = memory(server.pid());
+
+			for (Swarm swarm : swarms) {
+				swarm.running = false;
+				swarm.selector.wakeup();
+			}
+			for (Thread thread : swarmThreads) {
+				thread.join();
+			}
+			long missed = 0;
+			for (Subscriber subscriber : subscribers) {
+				missed += published - subscriber.sequences.get((int) first, (int) last + 1).cardinality();
+			}
+
+			System.out.printf("Events: %d veröffentlicht, %d erwartet, %d empfangen, %d verloren, %d doppelt%n",
+					published, expected, received.sum(), missed, duplicates.sum());
+			System.out.printf("Getrennte Clients: %d%n", disconnects.sum());
+			System.out.printf("Latenz (µs): p50 %d, p99 %d, p99.9 %d, max %d%n", latency.getQuantile(0.5),
+					latency.getQuantile(0.99), latency.getQuantile(0.999), latency.getQuantile(1));
+			System.out.printf("Server: CPU %.1f%% (%.2f s), RSS %d MiB, maximale RSS %d MiB%n",
+					percent(cpuStart, cpuEnd, seconds), seconds(cpuStart, cpuEnd), memory[0] / 1024,
+					memory[1] / 1024);
+			System.out.printf("Schwarm: CPU %.1f%% (%.2f s)%n", percent(selfStart, selfEnd, seconds),
+					seconds(selfStart, selfEnd));
+		} finally {
+			// the server first, a failed run must not leave it behind
+			if (server != null) {
+				server.destroy();
+				if (!server.waitFor(5, TimeUnit.SECONDS)) {
+					server.destroyForcibly();
+				}
+			}
+			// a failed run did not stop the swarms yet
+			for (Swarm swarm : swarms) {
+				if (swarm != null) {
+					swarm.running = false;
+					swarm.selector.wakeup();
+				}
+			}
+			for (Thread thread : swarmThreads) {
+				thread.join();
+			}
+			upstream.close();
+			upstreamThread.join();
+		}
+	}
+
+	/**
+	 * wait until the server process accepts connections
+	 */
+	private static void waitForServer(Process server, InetSocketAddress address)
+			throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (true) {
+			if (!server.isAlive()) {
+				throw new IOException("Server beendet mit " + server.exitValue());
+			}
+			try {
+				SocketChannel.open(address).close();
+				return;
+			} catch (IOException e) {
+				if (System.nanoTime() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * @return user and system cpu time of the process in clock ticks
+	 */
+	private static long[] cpuTicks(long pid) throws IOException {
+		String stat = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "stat")),
+				StandardCharsets.US_ASCII);
+		// the command name in parentheses may contain spaces, field 3 follows it
+		String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+		return new long[] { Long.parseLong(fields[11]), Long.parseLong(fields[12]) };
+	}
+
+	/**
+	 * @return current and peak resident memory of the process in KiB
+	 */
+	private static long[] memory(long pid) throws IOException {
+		long[] memory = new long[2];
+		for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+			if (line.startsWith("VmRSS:")) {
+				memory[0] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+			} else if (line.startsWith("VmHWM:")) {
+				memory[1] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+			}
+		}
+		return memory;
+	}
+
+	private static double seconds(long[] start, long[] end) {
+		return (double) (end[0] + end[1] - start[0] - start[1]) / CLOCK_TICKS;
+	}
+
+	private static double percent(long[] start, long[] end, double seconds) {
+		return 100 * seconds(start, end) / seconds;
+	}
+}
@@ -0,0 +1,160 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.holzinger.pibell.common.Frame;
+import dev.holzinger.pibell.common.Protocol;
+
+/**
+ * Measures a reconnect storm: several threads connect to the server at the
+ * same time and wait for the welcome, then close the connection again. The
+ * connections are plain, use TLS with a new session each time or resume the
+ * session of the previous connection.
+ *
+ * The key of the server is generated with the keytool of the running JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TlsHandshakeBenchmark {
+
+	private static final char[] PASSWORD = "benchmark".toCharArray();
+
+	@Param({ "plain", "full", "resumed" })
+	public String mode;
+
+	private Path directory;
+	private EventLoop loop;
+	private Thread loopThread;
+	private SocketFactory factory;
+	private final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+	@Setup
+	public void setup() throws IOException, InterruptedException, GeneralSecurityException {
+		Log.setLevel(Log.Level.WARN);
+		Config config = new Config();
+		config.backlog = 1024;
+		config.acceptRate = 0;
+		config.maxConnections = 0;
+		config.maxConnectionsPerAddress = 0;
+		if (!mode.equals("plain")) {
+			directory = Files.createTempDirectory("pibell-tls");
+			config.tlsKeystore = directory.resolve("server.p12");
+			config.tlsPassword = PASSWORD;
+			generateKey(config.tlsKeystore);
+			factory = clientContext(config.tlsKeystore).getSocketFactory();
+		} else {
+			factory = SocketFactory.getDefault();
+		}
+		loop = new EventLoop(new InetSocketAddress(loopback, 0), config);
+		loopThread = new Thread(loop, "event-loop");
+		loopThread.start();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		loop.close();
+		loopThread.join();
+		if (directory != null) {
+			Files.deleteIfExists(directory.resolve("server.p12"));
+			Files.delete(directory);
+		}
+	}
+
+	@Benchmark
+	public int reconnect() throws IOException {
+		try (Socket socket = factory.createSocket(loopback, loop.getLocalPort())) {
+			socket.setTcpNoDelay(true);
+			ByteBuffer hello = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+			Protocol.writeHello(hello);
+			OutputStream out = socket.getOutputStream();
+			out.write(hello.array(), 0, hello.position());
+			out.flush();
+			Frame frame = new Frame();
+			frame.read(new DataInputStream(socket.getInputStream()));
+			if (frame.getType() != Protocol.WELCOME) {
+				throw new IOException("welcome expected");
+			}
+			if (mode.equals("full")) {
+				// an invalid session is not resumed by the next connection
+				((SSLSocket) socket).getSession().invalidate();
+			}
+			return frame.getType();
+		}
+	}
+
+	/**
+	 * generate a self-signed key for localhost
+	 */
+	private static void generateKey(Path keystore) throws IOException, InterruptedException {
+		String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "pibell", "-keyalg", "EC",
+				"-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+				"-keystore", keystore.toString(), "-storepass", new String(PASSWORD)).inheritIO().start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed");
+		}
+	}
+
+	/**
+	 * @return context which trusts the certificate of the keystore
+	 */
+	private static SSLContext clientContext(Path keystore) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(keystore.toFile(), PASSWORD);
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(store);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trust.getTrustManagers(), null);
+		return context;
+	}
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.Timestamps;
+
+/**
+ * Measures the cost to encode a message and to write it to a single client.
+ * A background thread reads everything so that the socket never blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+	private SocketChannel sink;
+	private SocketChannel source;
+	private Thread drain;
+	private ByteBuffer frame;
+
+	@Setup
+	public void setup() throws IOException {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			source = SocketChannel.open(server.getLocalAddress());
+			sink = server.accept();
+		}
+		drain = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			try {
+				while (source.read(buffer) >= 0) {
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				// closed by tearDown
+			}
+		}, "drain");
+		drain.setDaemon(true);
+		drain.start();
+		frame = EventLoop.event(Protocol.RING, 1, Timestamps.nowMicros(), 0);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sink.close();
+		source.close();
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		return EventLoop.event(Protocol.RING, 1, Timestamps.nowMicros(), 0);
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		frame.rewind();
+		return sink.write(frame);
+	}
+
+	@Benchmark
+	public int encodeAndWrite() throws IOException {
+		ByteBuffer encoded = EventLoop.event(Protocol.RING, 1, Timestamps.nowMicros(), 0);
+		return sink.write(encoded);
+	}
+}
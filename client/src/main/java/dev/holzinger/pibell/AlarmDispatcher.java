@@ -0,0 +1,141 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers the alarms to the sinks in its own worker thread, so the network
+ * thread of the client never waits for a popup, a sound or a webhook.
+ *
+ * The first ring is delivered at once, after that at most one alarm per
+ * interval is delivered. The rings in between are combined into a single alarm
+ * with their number, e.g. "Es hat geklingelt (5 mal)".
+ */
+public class AlarmDispatcher {
+
+    /**
+     * default minimum time between two alarms in milliseconds
+     */
+    public static final int DEFAULT_INTERVAL = 2000;
+
+    // rings waiting for the worker, a burst beyond the capacity is only counted
+    private static final int CAPACITY = 64;
+
+    private final App app;
+    private final long intervalNanos;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(CAPACITY);
+    // rings which did not fit into the queue
+    private final AtomicInteger overflow = new AtomicInteger();
+    private final List<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+
+    private static class Sink {
+        final String name;
+        final AlarmSink sink;
+
+        Sink(String name, AlarmSink sink) {
+            this.name = name;
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * @param app      receives the log messages and errors of the sinks
+     * @param interval minimum time between two alarms in milliseconds, 0 to
+     *                 deliver every ring
+     */
+    public AlarmDispatcher(App app, int interval) {
+        this.app = app;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    /**
+     * add a sink, it can be added while the worker is running
+     *
+     * @param name name used in error messages
+     * @param sink receives the alarms
+     */
+    public void addSink(String name, AlarmSink sink) {
+        sinks.add(new Sink(name, sink));
+    }
+
+    /**
+     * start the worker thread, it is a daemon thread
+     */
+    public void start() {
+        Thread worker = new Thread(this::run, "alarm");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * queue an alarm, this method never blocks
+     *
+     * @param msg alarm message
+     */
+    public void alarm(String msg) {
+        if (!queue.offer(msg)) {
+            overflow.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        // the first ring is delivered without waiting
+        long last = System.nanoTime() - intervalNanos;
+        try {
+            while (true) {
+                String msg = queue.take();
+                int count = 1;
+                // collect the rings until the interval since the last alarm is over
+                long wait;
+                while ((wait = last + intervalNanos - System.nanoTime()) > 0) {
+                    String next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        // the newest message is shown
+                        msg = next;
+                        count++;
+                    }
+                }
+                while (queue.poll() != null) {
+                    count++;
+                }
+                count += overflow.getAndSet(0);
+                last = System.nanoTime();
+                deliver(count == 1 ? msg : msg + " (" + count + " mal)", count);
+            }
+        } catch (InterruptedException e) {
+            // only the jvm stops the worker
+        }
+    }
+
+    private void deliver(String msg, int count) {
+        app.writeLog("Alarm: " + msg);
+        for (Sink sink : sinks) {
+            try {
+                sink.sink.alarm(msg, count);
+            } catch (Exception e) {
+                // e.g. a refused connection has no message
+                String reason = e.getMessage() != null ? e.getMessage() : e.toString();
+                app.writeError("Alarm über " + sink.name + " fehlgeschlagen: " + reason);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+/**
+ * Delivers an alarm to the user, e.g. as tray popup, sound or webhook. The
+ * sinks are only called by the worker thread of the {@link AlarmDispatcher},
+ * so they may block.
+ */
+public interface AlarmSink {
+
+    /**
+     * deliver an alarm
+     *
+     * @param msg   alarm message, it already mentions the number of rings
+     * @param count number of rings combined in this alarm
+     * @throws Exception if the alarm could not be delivered
+     */
+    public void alarm(String msg, int count) throws Exception;
+}
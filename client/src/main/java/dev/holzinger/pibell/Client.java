@@ -15,93 +15,702 @@
 
 package dev.holzinger.pibell;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import dev.holzinger.pibell.common.Backoff;
+import dev.holzinger.pibell.common.Frame;
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.SequenceWindow;
+import dev.holzinger.pibell.common.Timestamps;
+import dev.holzinger.pibell.common.TlsChannel;
+
+/**
+ * Connects to one or more servers and reports their events to the {@link App}.
+ * All connections are handled by one thread with a {@link Selector}. Servers
+ * which send the same events, e.g. relays of the same server, are used at the
+ * same time: every event is only reported once and the client keeps working
+ * without a gap as long as one server is reachable.
+ */
 public class Client implements Runnable {
 
-	private String ip;
-	private int port;
-	private App app;
-	private Socket server;
+	// timeout to connect and to receive the welcome from the server
+	private static final int TIMEOUT = 10000;
+
+	/**
+	 * State of the connection to one server, only used by the client thread.
+	 */
+	private static class Upstream {
+		final String host;
+		final int port;
+		// connect with TLS, the address started with tls://
+		final boolean useTls;
+		// first retry after at most 250ms, then double up to 30 seconds, a
+		// connection which lasted a minute is healthy and resets the backoff
+		final Backoff backoff = new Backoff(250, 30000, 60000);
+
+		// null while we wait for the reconnect
+		SocketChannel channel;
+		SelectionKey key;
+		// encrypts the data of the channel, null for a plain connection
+		TlsChannel tls;
+		// receives the events in multicast mode, null otherwise
+		DatagramChannel multicast;
+		ByteBuffer input = ByteBuffer.allocate(256);
+		ByteBuffer output = ByteBuffer.allocate(256);
+
+		// set after the welcome of the server
+		boolean welcomed;
+		// sequence number of the last event sent before we connected, newer events
+		// were missed during the reconnect
+		long welcomeSequence;
+		// channel names of the server, the index is the channel number
+		String[] channelNames = new String[0];
+
+		// System.nanoTime() of the connect and of the last received data, the
+		// connection is dead if nothing arrives within the timeout
+		long started;
+		long lastReceived;
+		long timeoutNanos;
+		// System.nanoTime() of the next connection attempt
+		long reconnectAt;
+		// set if the server was never reachable
+		boolean failed;
+		// false after an error which a retry cannot fix, e.g. an unknown host
+		boolean enabled = true;
+
+		Upstream(String host, int port, boolean useTls) {
+			this.host = host;
+			this.port = port;
+			this.useTls = useTls;
+		}
+
+		String getName() {
+			return host + ":" + port;
+		}
+	}
+
+	private final List<Upstream> servers = new ArrayList<Upstream>();
+	private final App app;
+	// channels we want, empty for all channels
+	private final String[] subscription;
+	// received sequence numbers of all servers, empty before the first connection
+	private final SequenceWindow received = new SequenceWindow();
+	private final Frame frame = new Frame();
+	private final ByteBuffer datagram = ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE);
+	// created for the first TLS connection, the default context of the JVM keeps
+	// the sessions so that a reconnect can resume them
+	private SSLContext tlsContext;
+	private TlsChannel.Scratch tlsScratch;
+
+	private volatile Selector selector;
+	private volatile boolean running = true;
+	// set after the first successful connection, until then the client gives up
+	// when no server is reachable
 	private boolean reconnect;
 
 	public Client(String address, App app) throws URISyntaxException {
-		// WORKAROUND: add any scheme to make the resulting URI valid.
-		URI uri = new URI("tcp://" + address); // may throw URISyntaxException
-		if (uri.getHost() == null || uri.getPort() == -1) {
-			throw new URISyntaxException(address, "Verbindung braucht host and port Teil");
-		}
+		this(address, new String[0], app);
+	}
 
-		this.ip = uri.getHost();
-		this.port = uri.getPort();
+	/**
+	 * @param address  host and port of the server, several servers are separated
+	 *                 by commas. A server with the prefix tls:// is connected
+	 *                 with TLS.
+	 * @param channels names of the channels to receive, empty for all channels
+	 * @param app      receives the messages
+	 * @throws URISyntaxException if an address is invalid
+	 */
+	public Client(String address, String[] channels, App app) throws URISyntaxException {
+		for (String part : address.split(",")) {
+			String server = part.trim();
+			boolean useTls = server.startsWith("tls://");
+			if (useTls) {
+				server = server.substring("tls://".length());
+			}
+			// WORKAROUND: add any scheme to make the resulting URI valid.
+			URI uri = new URI("tcp://" + server); // may throw URISyntaxException
+			if (uri.getHost() == null || uri.getPort() == -1) {
+				throw new URISyntaxException(server, "Verbindung braucht host and port Teil");
+			}
+			servers.add(new Upstream(uri.getHost(), uri.getPort(), useTls));
+		}
 		this.app = app;
+		this.subscription = channels.clone();
 	}
 
 	/**
-	 * run the client
+	 * @param names comma separated channel names
+	 * @return the names without empty ones
+	 */
+	public static String[] parseChannels(String names) {
+		return Arrays.stream(names.split(",")).map(String::trim).filter(name -> !name.isEmpty())
+				.toArray(String[]::new);
+	}
+
+	/**
+	 * run the client until {@link #Close()} is called or no server can be reached
 	 */
 	public void run() {
-		while (true) {
-			try (Socket server = new Socket(ip, port)) {
-				this.server = server;
-				BufferedReader empfang = new BufferedReader(new InputStreamReader(server.getInputStream()));
-				app.writeSuccess("Erolgreich verbunden zu: " + server.getInetAddress().getHostAddress());
-				// Successfully connected to the server, set reconnect to make sure we reconnect
-				// in case we loose connection to the server
-				reconnect = true;
-				while (true) {
-					String msg = empfang.readLine();
-					if (msg != null) {
-						if (msg.equals("1")) {
-							app.createAlarm("Es hat geklingelt");
-						} else {
-							// we expect a fixed answer from the server, if get something else we should
-							// exit
-							app.writeError("Unbekannte Antwort vom Server");
-							return;
+		try (Selector selector = Selector.open()) {
+			this.selector = selector;
+			for (Upstream server : servers) {
+				connect(server);
+			}
+			while (running) {
+				long now = System.nanoTime();
+				// select(0) would block forever
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTimer(now) - now)));
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Upstream server = (Upstream) key.attachment();
+					try {
+						if (!key.isValid()) {
+							continue;
 						}
-					} else {
-						break;
+						if (key.channel() == server.multicast) {
+							receiveMulticast(server);
+							continue;
+						}
+						if (key.isConnectable()) {
+							finishConnect(server);
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(server);
+						}
+						if (key.isValid() && key.isWritable()) {
+							flush(server);
+						}
+					} catch (ProtocolException ex) {
+						// we expect a valid frame from the server, if get something else we do not
+						// try it again
+						app.writeError("Unbekannte Antwort vom Server " + server.getName() + ": " + ex.getMessage());
+						server.enabled = false;
+						close(server);
+					} catch (IOException ex) {
+						lost(server, ex.getMessage());
 					}
 				}
-			} catch (UnknownHostException ex) {
-				app.writeError("Verbindungsaubau zum Server fehlgeschlagen: " + ex.getMessage());
-				return;
-			} catch (IOException ex) {
-				app.writeError("Verbindung zum Server verloren: " + ex.getMessage());
-				// exit if we should not reconnect
-				if (!reconnect) {
-					return;
+				timers(System.nanoTime());
+			}
+		} catch (IOException ex) {
+			app.writeError("Unerwarteter IO Fehler: " + ex.getMessage());
+		} finally {
+			for (Upstream server : servers) {
+				close(server);
+			}
+		}
+	}
+
+	/**
+	 * @return System.nanoTime() of the next timeout or reconnect
+	 */
+	private long nextTimer(long now) {
+		long next = now + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+		for (Upstream server : servers) {
+			if (!server.enabled) {
+				continue;
+			}
+			long at;
+			if (server.channel == null) {
+				at = server.reconnectAt;
+			} else if (server.timeoutNanos > 0) {
+				at = server.lastReceived + server.timeoutNanos;
+			} else {
+				continue;
+			}
+			if (at - next < 0) {
+				next = at;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * reconnect and close the connections which timed out, stop if no server is
+	 * left
+	 */
+	private void timers(long now) {
+		boolean enabled = false;
+		for (Upstream server : servers) {
+			if (!server.enabled) {
+				continue;
+			}
+			enabled = true;
+			if (server.channel == null) {
+				if (now - server.reconnectAt >= 0) {
+					connect(server);
 				}
-				app.writeLog("Versuche Verbindung zum server in 30 Sekunden wiederherzustellen");
-				// sleep 30 seconds
+			} else if (server.timeoutNanos > 0 && now - server.lastReceived >= server.timeoutNanos) {
+				lost(server, server.welcomed ? "Server antwortet nicht" : "Zeitüberschreitung");
+			}
+		}
+		if (!enabled) {
+			running = false;
+		}
+	}
+
+	private void connect(Upstream server) {
+		server.started = System.nanoTime();
+		server.lastReceived = server.started;
+		// do not wait forever for the welcome of a hanging server
+		server.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+		try {
+			InetSocketAddress address = new InetSocketAddress(server.host, server.port);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(server.host);
+			}
+			SocketChannel channel = SocketChannel.open();
+			server.channel = channel;
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			if (channel.connect(address)) {
+				server.key = channel.register(selector, SelectionKey.OP_READ, server);
+				handshake(server);
+			} else {
+				server.key = channel.register(selector, SelectionKey.OP_CONNECT, server);
+			}
+		} catch (UnknownHostException ex) {
+			app.writeError("Verbindungsaubau zum Server fehlgeschlagen: " + ex.getMessage());
+			server.enabled = false;
+			close(server);
+		} catch (IOException ex) {
+			lost(server, ex.getMessage());
+		}
+	}
+
+	private void finishConnect(Upstream server) throws IOException {
+		server.channel.finishConnect();
+		server.key.interestOps(SelectionKey.OP_READ);
+		handshake(server);
+	}
+
+	/**
+	 * send the hello frame which starts the connection, after a reconnect ask for
+	 * the missed events
+	 */
+	private void handshake(Upstream server) throws IOException {
+		if (server.useTls) {
+			// the frames are buffered until the TLS handshake is done
+			startTls(server);
+		}
+		if (subscription.length > 0) {
+			// before the hello so that the replay only contains our channels
+			Protocol.writeNames(output(server, Protocol.namesSize(subscription)), Protocol.SUBSCRIBE, subscription);
+		}
+		Protocol.writeHello(output(server, Protocol.HEADER_SIZE + 9), received.getLast(),
+				(byte) (Protocol.FLAG_MULTICAST | Protocol.FLAG_ACK));
+		flush(server);
+	}
+
+	/**
+	 * connect to the server with TLS, the handshake continues with the reads
+	 */
+	private void startTls(Upstream server) throws IOException {
+		if (tlsContext == null) {
+			try {
+				tlsContext = SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("TLS nicht verfügbar: " + e.getMessage(), e);
+			}
+			tlsScratch = new TlsChannel.Scratch(tlsContext);
+		}
+		// with host and port the engine can resume a cached session
+		SSLEngine engine = tlsContext.createSSLEngine(server.host, server.port);
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		server.tls = new TlsChannel(server.channel, engine, tlsScratch);
+	}
+
+	private void read(Upstream server) throws IOException {
+		do {
+			ByteBuffer input = server.input;
+			int n = server.tls != null ? server.tls.read(input) : server.channel.read(input);
+			if (n < 0) {
+				lost(server, "Verbindung vom Server geschlossen");
+				return;
+			}
+			server.lastReceived = System.nanoTime();
+			input.flip();
+			while (server.channel != null && frame.read(input)) {
+				handle(server);
+			}
+			if (server.channel == null) {
+				// closed by a frame, e.g. the drain of a restarting server
+				return;
+			}
+			if ((server.output.position() > 0
+					|| server.tls != null && server.tls.hasPendingOutput())) {
+				// the acknowledgements of all events of this read in one write
+				flush(server);
+			}
+			input.compact();
+			if (!input.hasRemaining()) {
+				// a frame is bigger than the buffer
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(input.capacity() * 2, Protocol.MAX_FRAME_SIZE));
+				input.flip();
+				bigger.put(input);
+				server.input = bigger;
+			}
+			// TLS may have decrypted more than fit into the input buffer
+		} while (server.tls != null && server.tls.hasBufferedInput());
+	}
+
+	private void handle(Upstream server) throws IOException {
+		if (!server.welcomed) {
+			if (frame.getType() != Protocol.WELCOME) {
+				throw new ProtocolException("Willkommen erwartet");
+			}
+			welcome(server);
+			return;
+		}
+		if (Protocol.isEvent(frame.getType())) {
+			// also a duplicate, the server may have sent it again because our first
+			// acknowledgement was late
+			Protocol.writeAck(output(server, Protocol.HEADER_SIZE + 8), frame.getSequence());
+			handleEvent(server);
+			checkGap(server, frame.getSequence());
+		} else if (frame.getType() == Protocol.CHANNELS) {
+			server.channelNames = frame.getNames();
+		} else if (frame.getType() == Protocol.PING) {
+			Protocol.writePong(output(server, Protocol.HEADER_SIZE));
+			flush(server);
+			checkGap(server, frame.getSequence());
+		} else if (frame.getType() == Protocol.DRAIN) {
+			drained(server, frame.getPayloadLength() >= 12 ? frame.getInt(8) : 0);
+		}
+		// ignore unknown control frames, they may be sent by newer servers
+	}
+
+	private void welcome(Upstream server) {
+		server.welcomeSequence = frame.getSequence();
+		if (received.getLast() < 0 || (server.welcomeSequence < received.getLast() && !isConnected(server))) {
+			// first connection or the server lost its journal, there is nothing to
+			// replay. Another connected server may just be ahead of this one.
+			received.reset(server.welcomeSequence);
+		}
+		// the server pings us regularly, if nothing arrives for three intervals the
+		// connection is dead
+		int heartbeat = frame.getPayloadLength() >= 12 ? frame.getInt(8) : 0;
+		server.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(3L * heartbeat);
+		server.welcomed = true;
+		InetSocketAddress group = frame.getGroup();
+		if (group != null) {
+			joinMulticast(server, group);
+		}
+		app.writeSuccess("Erolgreich verbunden zu: " + server.getName());
+		app.writeLog("Verbindungsaufbau nach " + (server.backoff.getAttempt() + 1) + " Versuch(en) in "
+				+ (System.nanoTime() - server.started) / 1000000 + " ms");
+		// Successfully connected to a server, set reconnect to make sure we reconnect
+		// in case we loose connection to the server
+		reconnect = true;
+		server.backoff.connected();
+	}
+
+	/**
+	 * the server restarts, reconnect to the next process within the window
+	 * instead of waiting for the backoff. The events in between are replayed
+	 * after the reconnect.
+	 */
+	private void drained(Upstream server, int window) {
+		close(server);
+		server.backoff.reset();
+		long delay = window > 0 ? ThreadLocalRandom.current().nextLong(window + 1) : 0;
+		server.reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		app.writeLog("Server " + server.getName() + " startet neu, neue Verbindung in " + delay + " ms");
+	}
+
+	/**
+	 * @return true if another server than the given one is connected
+	 */
+	private boolean isConnected(Upstream except) {
+		for (Upstream server : servers) {
+			if (server != except && server.welcomed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * close the connection after an error and plan the reconnect
+	 */
+	private void lost(Upstream server, String message) {
+		boolean welcomed = server.welcomed;
+		close(server);
+		if (!running) {
+			return;
+		}
+		if (welcomed) {
+			server.backoff.disconnected();
+		}
+		String text = "Verbindung zum Server " + server.getName() + " verloren nach "
+				+ (System.nanoTime() - server.started) / 1000000 + " ms: " + message;
+		if (isConnected(null)) {
+			// the events still arrive from another server
+			app.writeLog(text);
+		} else {
+			app.writeError(text);
+		}
+		if (!reconnect) {
+			// give up if no server was ever reachable
+			server.failed = true;
+			if (servers.stream().allMatch(s -> s.failed || !s.enabled)) {
+				running = false;
+				return;
+			}
+		}
+		long delay = server.backoff.nextDelay();
+		server.reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		app.writeLog("Versuche Verbindung zum server " + server.getName() + " in " + delay
+				+ " ms wiederherzustellen (Versuch " + server.backoff.getAttempt() + ")");
+	}
+
+	private void close(Upstream server) {
+		if (server.tls != null) {
+			server.tls.close();
+			server.tls = null;
+		}
+		if (server.channel != null) {
+			try {
+				server.channel.close();
+			} catch (IOException e) {
+				// ignore errors
+			}
+		}
+		leaveMulticast(server);
+		server.channel = null;
+		server.key = null;
+		server.welcomed = false;
+		server.input.clear();
+		server.output.clear();
+	}
+
+	/**
+	 * @return the output buffer of the server with room for a frame of the size
+	 */
+	private static ByteBuffer output(Upstream server, int size) {
+		if (server.output.remaining() < size) {
+			ByteBuffer bigger = ByteBuffer.allocate(server.output.position() + size);
+			server.output.flip();
+			bigger.put(server.output);
+			server.output = bigger;
+		}
+		return server.output;
+	}
+
+	/**
+	 * write the buffered frames, wait for the socket if it is full
+	 */
+	private void flush(Upstream server) throws IOException {
+		ByteBuffer output = server.output;
+		output.flip();
+		if (server.tls != null) {
+			server.tls.write(output);
+		} else {
+			server.channel.write(output);
+		}
+		output.compact();
+		// during the TLS handshake the frames wait for the next read, not for the
+		// socket
+		boolean waiting = server.tls != null
+				? server.tls.hasPendingOutput() || server.tls.isHandshakeComplete() && output.position() > 0
+				: output.position() > 0;
+		server.key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * request missing events again, the heartbeat tells us the newest sequence
+	 * number so even the loss of the last event is noticed
+	 */
+	private void checkGap(Upstream server, long newest) throws IOException {
+		if (isFiltered(server)) {
+			// we do not see the events of the other channels, the server sent all
+			// our events up to the sequence number of the ping
+			if (newest > received.getLast()) {
+				received.reset(newest);
+			}
+			return;
+		}
+		if (newest <= received.getLast() && received.getMissing() == 0) {
+			return;
+		}
+		Protocol.writeRepair(output(server, Protocol.HEADER_SIZE + 8), received.getRepairAfter());
+		flush(server);
+	}
+
+	/**
+	 * join the multicast group of the server, the datagrams are received by the
+	 * same selector
+	 */
+	private void joinMulticast(Upstream server, InetSocketAddress group) {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open(group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6
+					: StandardProtocolFamily.INET);
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(group.getPort()));
+			channel.join(group.getAddress(), multicastInterface(server));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, server);
+			server.multicast = channel;
+			Protocol.writeEmpty(output(server, Protocol.HEADER_SIZE), Protocol.JOINED);
+			flush(server);
+			app.writeLog("Empfange Ereignisse per multicast von " + group.getAddress().getHostAddress());
+		} catch (IOException ex) {
+			// the events are still sent over the tcp connection
+			app.writeLog("Multicast nicht verfügbar: " + ex.getMessage());
+			if (channel != null && server.multicast == null) {
 				try {
-					Thread.sleep(30000);
-				} catch (InterruptedException iex) {
-					app.writeLog("Unerwarteter Fehler während des wartens : " + iex.getMessage());
+					channel.close();
+				} catch (IOException e) {
+					// ignore errors
 				}
 			}
 		}
 	}
 
 	/**
-	 * close the connection to the server
+	 * @return the network interface which reaches the server
 	 */
-	public void Close() {
-		if (server != null) {
+	private static NetworkInterface multicastInterface(Upstream server) throws IOException {
+		InetAddress local = ((InetSocketAddress) server.channel.getLocalAddress()).getAddress();
+		NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+		if (nif != null && nif.supportsMulticast()) {
+			return nif;
+		}
+		// e.g. the server runs on this machine, use any network with multicast
+		for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (candidate.isUp() && candidate.supportsMulticast()) {
+				return candidate;
+			}
+		}
+		throw new SocketException("Kein Netzwerk mit multicast");
+	}
+
+	private void receiveMulticast(Upstream server) throws IOException {
+		while (true) {
+			datagram.clear();
+			if (server.multicast.receive(datagram) == null) {
+				return;
+			}
+			datagram.flip();
 			try {
-				reconnect = false;
-				server.close();
-				server = null;
+				if (frame.read(datagram) && Protocol.isEvent(frame.getType())) {
+					handleEvent(server);
+					checkGap(server, frame.getSequence());
+				}
+			} catch (ProtocolException ex) {
+				// ignore invalid datagrams, anybody can send to the group
+			}
+		}
+	}
+
+	private static void leaveMulticast(Upstream server) {
+		if (server.multicast != null) {
+			try {
+				server.multicast.close();
 			} catch (IOException e) {
 				// ignore errors
 			}
+			server.multicast = null;
+		}
+	}
+
+	/**
+	 * @return true if the server only sends us some channels over TCP, the
+	 *         sequence numbers then have gaps
+	 */
+	private boolean isFiltered(Upstream server) {
+		return subscription.length > 0 && server.multicast == null;
+	}
+
+	/**
+	 * @return true if we subscribed to the channel
+	 */
+	private boolean isSubscribed(Upstream server, int channel) {
+		if (subscription.length == 0 || channel >= server.channelNames.length) {
+			return true;
+		}
+		for (String name : subscription) {
+			if (name.equals(server.channelNames[channel])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void handleEvent(Upstream server) {
+		long before = received.getLast();
+		if (!received.add(frame.getSequence())) {
+			// already received, e.g. from another server or via multicast and tcp
+			return;
+		}
+		long missed = frame.getSequence() - before - 1;
+		if (missed > 0 && !isFiltered(server)) {
+			app.writeError(missed + " Ereignis(se) verpasst, fordere sie erneut an");
+		}
+		if (!isSubscribed(server, frame.getChannel())) {
+			// multicast contains all channels
+			return;
+		}
+		if (frame.getType() == Protocol.RING) {
+			// only name the channel if the server has more than one
+			String[] names = server.channelNames;
+			String channel = names.length > 1 && frame.getChannel() < names.length
+					? " (" + names[frame.getChannel()] + ")"
+					: "";
+			if (frame.getSequence() <= server.welcomeSequence) {
+				app.createAlarm("Es hat während der Verbindungsunterbrechung geklingelt" + channel);
+			} else {
+				app.createAlarm("Es hat geklingelt" + channel);
+			}
+			long latency = Timestamps.nowMicros() - frame.getTimestamp();
+			app.writeLog("Verzögerung seit dem Klingeln: " + latency / 1000 + " ms");
+		}
+		// events of unknown types only count for the sequence number
+	}
+
+	/**
+	 * close the connections to the servers
+	 */
+	public void Close() {
+		running = false;
+		Selector selector = this.selector;
+		if (selector != null) {
+			selector.wakeup();
 		}
 	}
 
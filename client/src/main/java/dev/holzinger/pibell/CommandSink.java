@@ -0,0 +1,45 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs an external command for every alarm, the message is added as last
+ * argument.
+ */
+public class CommandSink implements AlarmSink {
+
+    private final List<String> command;
+
+    /**
+     * @param command command and arguments, split at spaces
+     */
+    public CommandSink(String command) {
+        this.command = Arrays.asList(command.trim().split("\\s+"));
+    }
+
+    @Override
+    public void alarm(String msg, int count) throws IOException {
+        List<String> arguments = new ArrayList<String>(command);
+        arguments.add(msg);
+        // do not wait for the command, a slow command must not delay the next alarm
+        new ProcessBuilder(arguments).inheritIO().start();
+    }
+}
@@ -18,14 +18,17 @@ package dev.holzinger.pibell;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.imageio.ImageIO;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
@@ -35,7 +38,7 @@ import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
@@ -59,8 +62,16 @@ public class GUI extends Application implements App {
     // statusLabel reference so we can change the text later
     private Label statusLabel;
 
-    // logField reference so we can change the text later
-    private TextArea logField;
+    // maximum number of lines shown in the log, older lines are removed
+    private static final int LOG_LINES = 1000;
+
+    // logView reference so we can add the lines later, the ListView only renders
+    // the visible lines
+    private ListView<String> logView;
+
+    // log messages from all threads waiting for the next pulse of the GUI thread
+    private final LogBuffer logBuffer = new LogBuffer(LOG_LINES);
+    private final List<String> logBatch = new ArrayList<String>();
 
     private Client client;
 
@@ -68,12 +79,15 @@ public class GUI extends Application implements App {
     // Runnable
     private App app = this;
 
-    // german date format
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yy HH:mm:ss");
+    // german date format, unlike SimpleDateFormat it is thread safe
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yy HH:mm:ss");
 
     // trayIcon reference so it can be accessed later
     private java.awt.TrayIcon trayIcon;
 
+    // plays the sound and shows the popups without blocking the client
+    private final AlarmDispatcher alarms = new AlarmDispatcher(this, AlarmDispatcher.DEFAULT_INTERVAL);
+
     @Override
     public void start(Stage stage) {
         // stores a reference to the stage.
@@ -82,13 +96,16 @@ public class GUI extends Application implements App {
         // sets up the tray icon (using awt code run on the swing thread).
         Platform.runLater(this::addAppToTray);
 
+        alarms.addSink("Ton", (msg, count) -> java.awt.Toolkit.getDefaultToolkit().beep());
+        alarms.start();
+
         // get command line args and create new client
         Parameters parms = getParameters();
         List<String> raw = parms.getRaw();
         String address = "";
         if (raw.size() == 1) {
             address = raw.get(0);
-            this.newClient(address);
+            this.newClient(address, new String[0]);
         }
 
         // create the layout for the javafx stage.
@@ -121,6 +138,10 @@ public class GUI extends Application implements App {
         address.setPromptText("Server Adresse");
         hbox.getChildren().add(address);
 
+        TextField channels = new TextField();
+        channels.setPromptText("Kanäle (alle)");
+        hbox.getChildren().add(channels);
+
         statusLabel = new Label("");
 
         Button button = new Button("Verbinden");
@@ -132,7 +153,7 @@ public class GUI extends Application implements App {
         button.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
-                gui.newClient(address.getText());
+                gui.newClient(address.getText(), Client.parseChannels(channels.getText()));
             }
         });
         hbox.getChildren().add(button);
@@ -140,10 +161,16 @@ public class GUI extends Application implements App {
         mainBox.getChildren().add(hbox);
         mainBox.getChildren().add(statusLabel);
 
-        logField = new TextArea();
-        logField.setEditable(false);
-        logField.setWrapText(true);
-        mainBox.getChildren().add(logField);
+        logView = new ListView<String>();
+        mainBox.getChildren().add(logView);
+
+        // show the new log lines once per frame instead of once per message
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flushLog();
+            }
+        }.start();
 
         HBox centerBox = new HBox(5, mainBox);
         centerBox.setPadding(new Insets(25, 10, 10, 10));
@@ -200,6 +227,10 @@ public class GUI extends Application implements App {
 
             // add the application tray icon to the system tray.
             tray.add(trayIcon);
+
+            // one popup for a burst of rings
+            alarms.addSink("Tray", (msg, count) -> trayIcon.displayMessage("Türklingel", msg,
+                    java.awt.TrayIcon.MessageType.INFO));
         } catch (java.awt.AWTException | IOException e) {
             System.err.println("System tray icon konnte nicht initialisiert werden");
             e.printStackTrace();
@@ -217,12 +248,12 @@ public class GUI extends Application implements App {
         }
     }
 
-    private void newClient(String address) {
+    private void newClient(String address, String[] channels) {
         if (client != null) {
             client.Close();
         }
         try {
-            client = new Client(address, app);
+            client = new Client(address, channels, app);
             Thread clientThread = new Thread(client);
             // set daemon to true to allow jvm to exit when the gui thread is closed
             clientThread.setDaemon(true);
@@ -234,31 +265,33 @@ public class GUI extends Application implements App {
     }
 
     public void createAlarm(String msg) {
-        java.awt.Toolkit.getDefaultToolkit().beep();
-        Platform.runLater(new Runnable() {
-            @Override
-            public void run() {
-                trayIcon.displayMessage("Türklingel", msg, java.awt.TrayIcon.MessageType.INFO);
-                app.writeLog("Alarm: " + msg);
-            }
-        });
+        // never blocks, the client must keep reading
+        alarms.alarm(msg);
+    }
 
+    /**
+     * move the buffered log messages to the log view, must be called in the GUI
+     * thread
+     */
+    private void flushLog() {
+        if (logBuffer.drainTo(logBatch) == 0) {
+            return;
+        }
+        ObservableList<String> items = logView.getItems();
+        // the newest message is shown at the top
+        items.addAll(0, logBatch);
+        logBatch.clear();
+        if (items.size() > LOG_LINES) {
+            items.remove(LOG_LINES, items.size());
+        }
     }
 
     public void writeLog(String msg) {
-        // run in GUI thread, it is not safe to change gui from another thread
-        Platform.runLater(new Runnable() {
-            @Override
-            public void run() {
-                Date date = new Date();
-                String message = dateFormat.format(date) + ": " + msg + "\n";
-                System.out.print(message);
-                if (logField != null) {
-                    // append the text to the start of the log field
-                    logField.insertText(0, message);
-                }
-            }
-        });
+        // the GUI thread shows the message with the next pulse, it is not safe to
+        // change gui from another thread
+        String message = LocalDateTime.now().format(DATE_FORMAT) + ": " + msg;
+        System.out.println(message);
+        logBuffer.add(message);
     }
 
     public void writeSuccess(String msg) {
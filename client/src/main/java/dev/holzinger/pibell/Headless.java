@@ -0,0 +1,158 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Client without GUI for small always-on systems. It only writes the messages
+ * to stdout and runs a command or calls a webhook for every alarm, no javafx
+ * or awt classes are loaded.
+ */
+public class Headless implements App {
+
+    // german date format
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yy HH:mm:ss");
+
+    // delivers the alarms without blocking the client
+    private final AlarmDispatcher alarms;
+
+    private static void usage() {
+        System.err.print("pibell --headless [OPTIONS] ADDRESS:PORT\n"
+                + "  --alarm-command COMMAND  Befehl der bei jedem Klingeln ausgeführt wird,\n"
+                + "                           die Nachricht wird als letztes Argument angehängt\n"
+                + "  --alarm-webhook URL      Klingeln als JSON an diese Adresse senden\n"
+                + "  --alarm-interval MS      Mindestabstand der Alarme, Klingeln dazwischen\n"
+                + "                           werden zusammengefasst (2000)\n"
+                + "  --channels NAMES         nur diese Kanäle empfangen, mit Komma getrennt (alle)\n");
+    }
+
+    public static void main(String[] args) {
+        String command = "";
+        URI webhook = null;
+        int interval = AlarmDispatcher.DEFAULT_INTERVAL;
+        String[] channels = new String[0];
+        String address = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--headless":
+                    break;
+                case "--alarm-command":
+                    if (i + 1 >= args.length) {
+                        usage();
+                        System.exit(1);
+                    }
+                    command = args[++i];
+                    break;
+                case "--alarm-webhook":
+                    if (i + 1 >= args.length) {
+                        usage();
+                        System.exit(1);
+                    }
+                    try {
+                        webhook = new URI(args[++i]);
+                    } catch (URISyntaxException ex) {
+                        usage();
+                        System.exit(1);
+                    }
+                    break;
+                case "--alarm-interval":
+                    if (i + 1 >= args.length) {
+                        usage();
+                        System.exit(1);
+                    }
+                    try {
+                        interval = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException ex) {
+                        usage();
+                        System.exit(1);
+                    }
+                    break;
+                case "--channels":
+                    if (i + 1 >= args.length) {
+                        usage();
+                        System.exit(1);
+                    }
+                    channels = Client.parseChannels(args[++i]);
+                    break;
+                case "--help":
+                case "-h":
+                    usage();
+                    return;
+                default:
+                    if (address != null) {
+                        usage();
+                        System.exit(1);
+                    }
+                    address = args[i];
+            }
+        }
+        if (address == null) {
+            usage();
+            System.exit(1);
+        }
+
+        Headless app = new Headless(command, webhook, interval);
+        try {
+            // runs until the process is stopped
+            new Client(address, channels, app).run();
+        } catch (URISyntaxException ex) {
+            app.writeError(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param alarmCommand command run for each alarm, split at spaces, empty to
+     *                     disable it
+     * @param webhook      address the alarms are posted to, null to disable it
+     * @param interval     minimum time between two alarms in milliseconds
+     */
+    public Headless(String alarmCommand, URI webhook, int interval) {
+        alarms = new AlarmDispatcher(this, interval);
+        if (!alarmCommand.trim().isEmpty()) {
+            alarms.addSink("Befehl", new CommandSink(alarmCommand));
+        }
+        if (webhook != null) {
+            alarms.addSink("Webhook", new WebhookSink(webhook));
+        }
+        alarms.start();
+    }
+
+    private static String now() {
+        return LocalDateTime.now().format(DATE_FORMAT);
+    }
+
+    public void writeLog(String msg) {
+        System.out.println(now() + ": " + msg);
+    }
+
+    public void writeError(String err) {
+        System.err.println(now() + ": Fehler: " + err);
+    }
+
+    public void writeSuccess(String msg) {
+        writeLog(msg);
+    }
+
+    public void createAlarm(String msg) {
+        // never blocks, the client must keep reading
+        alarms.alarm(msg);
+    }
+}
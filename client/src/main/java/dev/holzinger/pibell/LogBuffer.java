@@ -0,0 +1,79 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.util.List;
+
+/**
+ * Fixed size ring buffer for log messages. Any thread can add messages, the
+ * GUI thread takes them in batches. If the GUI does not keep up the oldest
+ * messages are overwritten, so the memory use never grows.
+ */
+class LogBuffer {
+
+    private final String[] ring;
+    // index of the oldest message and number of messages in the ring
+    private int head;
+    private int size;
+    private long dropped;
+
+    /**
+     * @param capacity maximum number of messages waiting for the GUI
+     */
+    LogBuffer(int capacity) {
+        ring = new String[capacity];
+    }
+
+    /**
+     * add a message, overwrite the oldest one if the buffer is full
+     *
+     * @param msg message to add
+     */
+    synchronized void add(String msg) {
+        if (size == ring.length) {
+            head = (head + 1) % ring.length;
+            size--;
+            dropped++;
+        }
+        ring[(head + size) % ring.length] = msg;
+        size++;
+    }
+
+    /**
+     * move all messages to the list, the newest message first
+     *
+     * @param out list to add the messages to
+     * @return number of moved messages
+     */
+    synchronized int drainTo(List<String> out) {
+        int n = size;
+        for (int i = n - 1; i >= 0; i--) {
+            int index = (head + i) % ring.length;
+            out.add(ring[index]);
+            ring[index] = null;
+        }
+        head = 0;
+        size = 0;
+        return n;
+    }
+
+    /**
+     * @return number of messages overwritten before the GUI got them
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -21,6 +21,11 @@ package dev.holzinger.pibell;
  */
 public class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            // must not touch the GUI class, otherwise javafx would be loaded
+            Headless.main(args);
+            return;
+        }
         GUI.launch(GUI.class, args);
     }
 }
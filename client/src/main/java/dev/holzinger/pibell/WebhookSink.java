@@ -0,0 +1,54 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Sends every alarm as JSON to a HTTP webhook, e.g. of a local home automation
+ * system: {"message":"Es hat geklingelt","count":1}
+ */
+public class WebhookSink implements AlarmSink {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final URI uri;
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+
+    /**
+     * @param uri address the alarms are posted to
+     */
+    public WebhookSink(URI uri) {
+        this.uri = uri;
+    }
+
+    @Override
+    public void alarm(String msg, int count) throws IOException, InterruptedException {
+        String json = "{\"message\":\"" + msg.replace("\\", "\\\\").replace("\"", "\\\"") + "\",\"count\":" + count
+                + "}";
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(TIMEOUT).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json)).build();
+        HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("HTTP Status " + response.statusCode());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 module dev.holzinger.pibell {
     requires transitive javafx.controls;
     requires java.desktop;
+    requires java.net.http;
+    requires dev.holzinger.pibell.common;
     exports dev.holzinger.pibell;
 }
@@ -0,0 +1,125 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AlarmDispatcherTest {
+
+    private static final int INTERVAL = 300;
+
+    private final List<String> errors = new CopyOnWriteArrayList<String>();
+    // delivered alarms as "message|count"
+    private final BlockingQueue<String> alarms = new LinkedBlockingQueue<String>();
+    private final AlarmDispatcher dispatcher = new AlarmDispatcher(new App() {
+        @Override
+        public void writeLog(String msg) {
+        }
+
+        @Override
+        public void writeError(String err) {
+            errors.add(err);
+        }
+
+        @Override
+        public void writeSuccess(String msg) {
+        }
+
+        @Override
+        public void createAlarm(String msg) {
+        }
+    }, INTERVAL);
+
+    @Test
+    void firstRingIsDeliveredAtOnce() throws InterruptedException {
+        dispatcher.addSink("test", this::record);
+        dispatcher.start();
+        long start = System.nanoTime();
+        dispatcher.alarm("Es hat geklingelt");
+        assertEquals("Es hat geklingelt|1", alarms.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(INTERVAL));
+    }
+
+    @Test
+    void ringsWithinTheIntervalAreCombined() throws InterruptedException {
+        dispatcher.addSink("test", this::record);
+        dispatcher.start();
+        dispatcher.alarm("a");
+        assertEquals("a|1", alarms.poll(5, TimeUnit.SECONDS));
+        long first = System.nanoTime();
+        dispatcher.alarm("b");
+        dispatcher.alarm("c");
+        dispatcher.alarm("d");
+        // the newest message with the number of rings
+        assertEquals("d (3 mal)|3", alarms.poll(5, TimeUnit.SECONDS));
+        // a little less for the time between the delivery and our clock
+        assertTrue(System.nanoTime() - first >= TimeUnit.MILLISECONDS.toNanos(INTERVAL - 50));
+        assertNull(alarms.poll(2 * INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void overflowIsCountedInTheNextAlarm() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.addSink("test", (msg, count) -> {
+            if (blocked.getCount() > 0) {
+                // keep the worker busy while the queue fills up
+                blocked.countDown();
+                release.await();
+            }
+            record(msg, count);
+        });
+        dispatcher.start();
+        dispatcher.alarm("first");
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        // more rings than the queue holds
+        for (int i = 0; i < 100; i++) {
+            dispatcher.alarm("ring " + i);
+        }
+        release.countDown();
+        assertEquals("first|1", alarms.poll(5, TimeUnit.SECONDS));
+        String next = alarms.poll(5, TimeUnit.SECONDS);
+        assertTrue(next.endsWith(" (100 mal)|100"), next);
+    }
+
+    @Test
+    void failingSinkDoesNotStopTheOthers() throws InterruptedException {
+        dispatcher.addSink("kaputt", (msg, count) -> {
+            throw new IllegalStateException("nicht erreichbar");
+        });
+        dispatcher.addSink("test", this::record);
+        dispatcher.start();
+        dispatcher.alarm("a");
+        assertEquals("a|1", alarms.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).contains("kaputt"), errors.get(0));
+    }
+
+    private void record(String msg, int count) {
+        alarms.add(msg + "|" + count);
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LogBufferTest {
+
+    private final LogBuffer buffer = new LogBuffer(3);
+    private final List<String> out = new ArrayList<String>();
+
+    @Test
+    void drainNewestFirst() {
+        buffer.add("a");
+        buffer.add("b");
+        assertEquals(2, buffer.drainTo(out));
+        assertEquals(Arrays.asList("b", "a"), out);
+        assertEquals(0, buffer.getDropped());
+    }
+
+    @Test
+    void drainEmptiesTheBuffer() {
+        buffer.add("a");
+        buffer.drainTo(out);
+        out.clear();
+        assertEquals(0, buffer.drainTo(out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    void fullBufferOverwritesTheOldest() {
+        for (String msg : new String[] { "a", "b", "c", "d", "e" }) {
+            buffer.add(msg);
+        }
+        assertEquals(3, buffer.drainTo(out));
+        assertEquals(Arrays.asList("e", "d", "c"), out);
+        assertEquals(2, buffer.getDropped());
+    }
+
+    @Test
+    void addAfterDrainWrapsAround() {
+        buffer.add("a");
+        buffer.add("b");
+        buffer.drainTo(out);
+        out.clear();
+        buffer.add("c");
+        buffer.add("d");
+        buffer.add("e");
+        buffer.add("f");
+        assertEquals(3, buffer.drainTo(out));
+        assertEquals(Arrays.asList("f", "e", "d"), out);
+        assertEquals(1, buffer.getDropped());
+    }
+
+    @Test
+    void concurrentAdd() throws InterruptedException {
+        LogBuffer big = new LogBuffer(100000);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    big.add("msg");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, big.drainTo(out));
+        assertEquals(0, big.getDropped());
+    }
+}
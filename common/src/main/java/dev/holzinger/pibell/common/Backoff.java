@@ -0,0 +1,99 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reconnect delays with exponential backoff and full jitter. The first retry
+ * happens almost immediately, every further failed attempt doubles the upper
+ * bound of the random delay until the cap is reached. Because of the jitter
+ * many clients which lost the same server do not reconnect at the same time.
+ *
+ * This class is not thread-safe.
+ */
+public class Backoff {
+
+	private final long baseMillis;
+	private final long capMillis;
+	private final long healthyMillis;
+
+	// number of attempts since the last healthy connection
+	private int attempt;
+	private long lastDelay;
+	private long connectedAt;
+
+	/**
+	 * @param baseMillis    upper bound of the first delay
+	 * @param capMillis     maximum delay
+	 * @param healthyMillis a connection which lasted at least this long resets
+	 *                      the backoff
+	 */
+	public Backoff(long baseMillis, long capMillis, long healthyMillis) {
+		this.baseMillis = baseMillis;
+		this.capMillis = capMillis;
+		this.healthyMillis = healthyMillis;
+	}
+
+	/**
+	 * @return time to wait in milliseconds before the next attempt
+	 */
+	public long nextDelay() {
+		// limit the shift to avoid an overflow, the cap is reached long before
+		long bound = Math.min(capMillis, baseMillis << Math.min(attempt, 30));
+		attempt++;
+		lastDelay = ThreadLocalRandom.current().nextLong(bound + 1);
+		return lastDelay;
+	}
+
+	/**
+	 * call when a connection was established
+	 */
+	public void connected() {
+		connectedAt = System.nanoTime();
+	}
+
+	/**
+	 * call when an established connection was lost, resets the backoff if the
+	 * connection was healthy long enough
+	 */
+	public void disconnected() {
+		if ((System.nanoTime() - connectedAt) / 1000000 >= healthyMillis) {
+			reset();
+		}
+	}
+
+	/**
+	 * start again with the shortest delay
+	 */
+	public void reset() {
+		attempt = 0;
+	}
+
+	/**
+	 * @return number of attempts since the last reset
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * @return the last delay returned by {@link #nextDelay()}
+	 */
+	public long getLastDelay() {
+		return lastDelay;
+	}
+}
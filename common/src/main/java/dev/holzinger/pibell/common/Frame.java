@@ -0,0 +1,242 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A decoded frame of the {@link Protocol}. The object is reused for every
+ * frame so that reading does not allocate memory.
+ */
+public class Frame {
+
+	private byte version;
+	private byte type;
+	private long sequence;
+	private long timestamp;
+
+	// payload of the last frame, grows when needed
+	private byte[] payload = new byte[16];
+	private int payloadLength;
+
+	/**
+	 * decode the next frame if it is already complete in the buffer
+	 *
+	 * @param in buffer in read mode, the position is moved behind the frame
+	 * @return false if the buffer does not contain a complete frame yet
+	 * @throws ProtocolException if the frame is invalid
+	 */
+	public boolean read(ByteBuffer in) throws ProtocolException {
+		if (in.remaining() < 2) {
+			return false;
+		}
+		int length = in.getShort(in.position()) & 0xffff;
+		if (in.remaining() < 2 + length) {
+			return false;
+		}
+		if (length < 2) {
+			throw new ProtocolException("Ungültige Frame Länge: " + length);
+		}
+		in.getShort();
+		version = in.get();
+		type = in.get();
+		payloadLength = length - 2;
+		ensureCapacity();
+		in.get(payload, 0, payloadLength);
+		decode();
+		return true;
+	}
+
+	/**
+	 * read the next frame and block until it is complete
+	 *
+	 * @param in input stream of the connection
+	 * @throws IOException if reading failed or the frame is invalid
+	 */
+	public void read(DataInputStream in) throws IOException {
+		int length = in.readUnsignedShort();
+		if (length < 2) {
+			throw new ProtocolException("Ungültige Frame Länge: " + length);
+		}
+		version = in.readByte();
+		type = in.readByte();
+		payloadLength = length - 2;
+		ensureCapacity();
+		in.readFully(payload, 0, payloadLength);
+		decode();
+	}
+
+	private void ensureCapacity() {
+		if (payload.length < payloadLength) {
+			payload = new byte[payloadLength];
+		}
+	}
+
+	private void decode() throws ProtocolException {
+		sequence = 0;
+		timestamp = 0;
+		if (Protocol.isEvent(type)) {
+			if (payloadLength < 16) {
+				throw new ProtocolException("Event zu kurz: " + payloadLength);
+			}
+			sequence = getLong(0);
+			timestamp = getLong(8);
+		} else if (type == Protocol.WELCOME || type == Protocol.PING || type == Protocol.REPAIR
+				|| type == Protocol.ACK || type == Protocol.DRAIN) {
+			if (payloadLength < 8) {
+				throw new ProtocolException("Frame zu kurz: " + payloadLength);
+			}
+			sequence = getLong(0);
+		} else if (type == Protocol.HELLO) {
+			// the client only sends a sequence number when it wants the missed events
+			sequence = payloadLength >= 8 ? getLong(0) : -1;
+		}
+	}
+
+	/**
+	 * @return flags of a {@link Protocol#HELLO}
+	 */
+	public byte getFlags() {
+		return type == Protocol.HELLO && payloadLength >= 9 ? payload[8] : 0;
+	}
+
+	/**
+	 * @return multicast group of a {@link Protocol#WELCOME}, null if the server
+	 *         does not use multicast
+	 */
+	public InetSocketAddress getGroup() {
+		int length = payloadLength - 14;
+		if (type != Protocol.WELCOME || (length != 4 && length != 16)) {
+			return null;
+		}
+		try {
+			InetAddress address = InetAddress.getByAddress(Arrays.copyOfRange(payload, 14, 14 + length));
+			return new InetSocketAddress(address, ((payload[12] & 0xff) << 8) | (payload[13] & 0xff));
+		} catch (UnknownHostException e) {
+			// cannot happen, the length was checked
+			return null;
+		}
+	}
+
+	/**
+	 * @return channel of an event, 0 for events of old servers
+	 */
+	public int getChannel() {
+		return Protocol.isEvent(type) && payloadLength >= 17 ? payload[16] & 0xff : 0;
+	}
+
+	/**
+	 * @return channel names of a {@link Protocol#CHANNELS} or
+	 *         {@link Protocol#SUBSCRIBE} frame
+	 * @throws ProtocolException if the names are truncated
+	 */
+	public String[] getNames() throws ProtocolException {
+		if ((type != Protocol.CHANNELS && type != Protocol.SUBSCRIBE) || payloadLength < 1) {
+			return new String[0];
+		}
+		String[] names = new String[payload[0] & 0xff];
+		int offset = 1;
+		for (int i = 0; i < names.length; i++) {
+			int length = offset < payloadLength ? payload[offset] & 0xff : -1;
+			if (length < 0 || offset + 1 + length > payloadLength) {
+				throw new ProtocolException("Kanalnamen unvollständig");
+			}
+			names[i] = new String(payload, offset + 1, length, StandardCharsets.UTF_8);
+			offset += 1 + length;
+		}
+		return names;
+	}
+
+	/**
+	 * @param offset offset in the payload
+	 * @return the big endian int at the offset
+	 */
+	public int getInt(int offset) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (payload[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * @param offset offset in the payload
+	 * @return the big endian long at the offset
+	 */
+	public long getLong(int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (payload[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * @return protocol version of the sender
+	 */
+	public byte getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return frame type
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return sequence number of an event, the last sequence number in a
+	 *         {@link Protocol#WELCOME}, {@link Protocol#PING} or
+	 *         {@link Protocol#DRAIN}, the sequence
+	 *         number before the gap in a {@link Protocol#REPAIR} or the last
+	 *         received sequence number in a {@link Protocol#HELLO} (-1 if the
+	 *         client does not want a replay)
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return time of the gpio edge of an event in microseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return raw payload, only the first {@link #getPayloadLength()} bytes are
+	 *         valid
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return length of the payload
+	 */
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+}
@@ -0,0 +1,104 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe latency histogram with logarithmic buckets similar to an HDR
+ * histogram. Every power of two is split into 16 linear buckets, so a
+ * percentile is exact within 6.25%. Recording a value does not allocate
+ * memory and never blocks.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// values up to 2^40 (about 12 days in microseconds) get their own bucket
+	private static final int MAGNITUDES = 40 - SUB_BITS + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param value value to record, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of all recorded values
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param quantile quantile between 0 and 1, e.g. 0.99
+	 * @return upper bound of the bucket which contains the quantile, 0 if
+	 *         nothing was recorded
+	 */
+	public long getQuantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return lowerBound(i + 1) - 1;
+			}
+		}
+		return lowerBound(counts.length()) - 1;
+	}
+
+	private int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return Math.min((magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub, counts.length() - 1);
+	}
+
+	private static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - SUB_BITS);
+	}
+}
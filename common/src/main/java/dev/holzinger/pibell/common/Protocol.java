@@ -0,0 +1,349 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol between server and client.
+ *
+ * Every frame starts with a 4 byte header: the length of the rest of the frame
+ * (2 bytes, big endian, including version and type), the protocol version of
+ * the sender (1 byte) and the frame type (1 byte). Types below
+ * {@link #FIRST_EVENT} are control frames, all other types are events whose
+ * payload starts with the sequence number and the timestamp of the gpio edge
+ * in microseconds since the epoch (8 bytes each) followed by the channel (1
+ * byte, missing in old events which always belong to channel 0). Unknown frame types and
+ * additional payload bytes must be ignored, this allows adding new events and
+ * fields without breaking old clients.
+ *
+ * A connection starts with {@link #HELLO} from the client, the server answers
+ * with {@link #WELCOME} and only sends events after that. A reconnecting client
+ * can ask for the events it missed in the {@link #HELLO}, the server sends them
+ * right after the {@link #WELCOME} if they are still in its journal.
+ *
+ * In multicast mode the server sends every event once as a datagram which
+ * contains the same frame. The {@link #WELCOME} tells the client the multicast
+ * group, a client which joined it sends {@link #JOINED} and from then on only
+ * gets missed events over TCP when it asks for them with {@link #REPAIR}.
+ *
+ * A server can have several inputs, the channels. It sends their names in
+ * {@link #CHANNELS} after the {@link #WELCOME}, the index of a name is the
+ * channel number in the events. A client which only wants some channels sends
+ * {@link #SUBSCRIBE}, the server then only sends the events of these channels
+ * over TCP. Because the client does not see the other sequence numbers it
+ * cannot find gaps itself, the {@link #PING} tells it that all events up to
+ * its sequence number were sent.
+ *
+ * Before the server stops it sends {@link #DRAIN}, its clients then reconnect
+ * spread over a short window to the next server process.
+ */
+public final class Protocol {
+
+	/**
+	 * protocol version implemented by this code
+	 */
+	public static final byte VERSION = 1;
+	/**
+	 * oldest protocol version which is still supported
+	 */
+	public static final byte MIN_VERSION = 1;
+
+	/**
+	 * length of the frame header
+	 */
+	public static final int HEADER_SIZE = 4;
+	/**
+	 * maximum length of a frame including the header
+	 */
+	public static final int MAX_FRAME_SIZE = 2 + 0xffff;
+
+	/**
+	 * client to server: first frame of a connection, optional payload: sequence
+	 * number of the last event the client received or -1 (8 bytes) and the
+	 * client flags (1 byte)
+	 */
+	public static final byte HELLO = 1;
+	/**
+	 * server to client: answer to {@link #HELLO}, payload: sequence number of
+	 * the last event (8 bytes), the heartbeat interval in milliseconds (4 bytes)
+	 * and optional the multicast port (2 bytes) and group address (4 or 16
+	 * bytes)
+	 */
+	public static final byte WELCOME = 2;
+	/**
+	 * server to client: heartbeat, the client must answer with {@link #PONG},
+	 * payload: sequence number of the last event (8 bytes)
+	 */
+	public static final byte PING = 3;
+	/**
+	 * client to server: answer to {@link #PING}, no payload
+	 */
+	public static final byte PONG = 4;
+	/**
+	 * client to server: the client receives the events from the multicast group
+	 * now, no payload
+	 */
+	public static final byte JOINED = 5;
+	/**
+	 * client to server: send all events after the sequence number (8 bytes)
+	 * again
+	 */
+	public static final byte REPAIR = 6;
+	/**
+	 * server to client: names of the channels, payload: number of channels (1
+	 * byte) and for each channel the length (1 byte) and the UTF-8 name
+	 */
+	public static final byte CHANNELS = 7;
+	/**
+	 * client to server: only send the events of these channels, same payload as
+	 * {@link #CHANNELS}, no names means all channels
+	 */
+	public static final byte SUBSCRIBE = 8;
+	/**
+	 * client to server: the event with the sequence number (8 bytes) was
+	 * received, only sent by clients with {@link #FLAG_ACK}
+	 */
+	public static final byte ACK = 9;
+	/**
+	 * server to client: the server stops, e.g. for a restart, and closes the
+	 * connection after this frame. The client reconnects at a random time within
+	 * the window instead of waiting for its backoff, payload: sequence number of
+	 * the last event (8 bytes) and the reconnect window in milliseconds (4
+	 * bytes)
+	 */
+	public static final byte DRAIN = 10;
+
+	/**
+	 * {@link #HELLO} flag: the client can receive multicast events
+	 */
+	public static final byte FLAG_MULTICAST = 1;
+	/**
+	 * {@link #HELLO} flag: the client acknowledges every event with {@link #ACK}
+	 */
+	public static final byte FLAG_ACK = 2;
+
+	/**
+	 * smallest event type
+	 */
+	public static final byte FIRST_EVENT = 16;
+	/**
+	 * event: the bell rang
+	 */
+	public static final byte RING = 16;
+
+	/**
+	 * length of a complete event frame
+	 */
+	public static final int EVENT_SIZE = HEADER_SIZE + 17;
+	/**
+	 * length of an event frame without channel, written by old servers
+	 */
+	public static final int MIN_EVENT_SIZE = HEADER_SIZE + 16;
+
+	/**
+	 * maximum number of channels of a server
+	 */
+	public static final int MAX_CHANNELS = 64;
+
+	private Protocol() {
+	}
+
+	/**
+	 * @param type frame type
+	 * @return true if the frame type is an event with sequence number
+	 */
+	public static boolean isEvent(byte type) {
+		return type >= FIRST_EVENT;
+	}
+
+	/**
+	 * write a {@link #HELLO} frame
+	 *
+	 * @param out buffer with at least {@link #HEADER_SIZE} bytes remaining
+	 */
+	public static void writeHello(ByteBuffer out) {
+		writeHeader(out, HELLO, 0);
+	}
+
+	/**
+	 * write a {@link #HELLO} frame with flags which may ask for the missed events
+	 *
+	 * @param out   buffer with at least {@link #HEADER_SIZE} + 9 bytes remaining
+	 * @param after sequence number of the last event the client received, -1 if
+	 *              it does not want a replay
+	 * @param flags client flags, e.g. {@link #FLAG_MULTICAST}
+	 */
+	public static void writeHello(ByteBuffer out, long after, byte flags) {
+		writeHeader(out, HELLO, 9);
+		out.putLong(after);
+		out.put(flags);
+	}
+
+	/**
+	 * write a {@link #WELCOME} frame
+	 *
+	 * @param out       buffer with at least {@link #HEADER_SIZE} + 12 bytes
+	 *                  remaining
+	 * @param version   negotiated protocol version
+	 * @param sequence  sequence number of the last event
+	 * @param heartbeat interval of the {@link #PING} frames in milliseconds
+	 * @param group     multicast group of the events or null, needs 18 more
+	 *                  bytes in the buffer
+	 */
+	public static void writeWelcome(ByteBuffer out, byte version, long sequence, int heartbeat,
+			InetSocketAddress group) {
+		byte[] address = group != null ? group.getAddress().getAddress() : new byte[0];
+		writeHeader(out, version, WELCOME, 12 + (group != null ? 2 + address.length : 0));
+		out.putLong(sequence);
+		out.putInt(heartbeat);
+		if (group != null) {
+			out.putShort((short) group.getPort());
+			out.put(address);
+		}
+	}
+
+	/**
+	 * write a {@link #PING} frame
+	 *
+	 * @param out      buffer with at least {@link #HEADER_SIZE} + 8 bytes remaining
+	 * @param sequence sequence number of the last event
+	 */
+	public static void writePing(ByteBuffer out, long sequence) {
+		writeHeader(out, PING, 8);
+		out.putLong(sequence);
+	}
+
+	/**
+	 * write a {@link #DRAIN} frame
+	 *
+	 * @param out      buffer with at least {@link #HEADER_SIZE} + 12 bytes
+	 *                 remaining
+	 * @param sequence sequence number of the last event
+	 * @param window   reconnect window in milliseconds
+	 */
+	public static void writeDrain(ByteBuffer out, long sequence, int window) {
+		writeHeader(out, DRAIN, 12);
+		out.putLong(sequence);
+		out.putInt(window);
+	}
+
+	/**
+	 * write a frame without payload, e.g. {@link #JOINED}
+	 *
+	 * @param out  buffer with at least {@link #HEADER_SIZE} bytes remaining
+	 * @param type frame type
+	 */
+	public static void writeEmpty(ByteBuffer out, byte type) {
+		writeHeader(out, type, 0);
+	}
+
+	/**
+	 * write a {@link #REPAIR} frame
+	 *
+	 * @param out   buffer with at least {@link #HEADER_SIZE} + 8 bytes remaining
+	 * @param after sequence number of the last event before the gap
+	 */
+	public static void writeRepair(ByteBuffer out, long after) {
+		writeHeader(out, REPAIR, 8);
+		out.putLong(after);
+	}
+
+	/**
+	 * write an {@link #ACK} frame
+	 *
+	 * @param out      buffer with at least {@link #HEADER_SIZE} + 8 bytes remaining
+	 * @param sequence sequence number of the received event
+	 */
+	public static void writeAck(ByteBuffer out, long sequence) {
+		writeHeader(out, ACK, 8);
+		out.putLong(sequence);
+	}
+
+	/**
+	 * write a {@link #CHANNELS} or {@link #SUBSCRIBE} frame
+	 *
+	 * @param out   buffer with at least {@link #namesSize(String[])} bytes
+	 *              remaining
+	 * @param type  {@link #CHANNELS} or {@link #SUBSCRIBE}
+	 * @param names channel names, at most {@link #MAX_CHANNELS}
+	 */
+	public static void writeNames(ByteBuffer out, byte type, String[] names) {
+		writeHeader(out, type, namesSize(names) - HEADER_SIZE);
+		out.put((byte) names.length);
+		for (String name : names) {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			out.put((byte) bytes.length);
+			out.put(bytes);
+		}
+	}
+
+	/**
+	 * @param names channel names, each at most 255 bytes long in UTF-8
+	 * @return length of a {@link #CHANNELS} or {@link #SUBSCRIBE} frame
+	 */
+	public static int namesSize(String[] names) {
+		int size = HEADER_SIZE + 1;
+		for (String name : names) {
+			size += 1 + name.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return size;
+	}
+
+	/**
+	 * write a {@link #PONG} frame
+	 *
+	 * @param out buffer with at least {@link #HEADER_SIZE} bytes remaining
+	 */
+	public static void writePong(ByteBuffer out) {
+		writeHeader(out, PONG, 0);
+	}
+
+	/**
+	 * write an event frame
+	 *
+	 * @param out       buffer with at least {@link #EVENT_SIZE} bytes remaining
+	 * @param type      event type
+	 * @param sequence  sequence number of the event
+	 * @param timestamp time of the gpio edge in microseconds since the epoch
+	 * @param channel   channel of the input
+	 */
+	public static void writeEvent(ByteBuffer out, byte type, long sequence, long timestamp, int channel) {
+		writeHeader(out, type, 17);
+		out.putLong(sequence);
+		out.putLong(timestamp);
+		out.put((byte) channel);
+	}
+
+	/**
+	 * write a frame header
+	 *
+	 * @param out           target buffer
+	 * @param type          frame type
+	 * @param payloadLength length of the payload which follows the header
+	 */
+	public static void writeHeader(ByteBuffer out, byte type, int payloadLength) {
+		writeHeader(out, VERSION, type, payloadLength);
+	}
+
+	private static void writeHeader(ByteBuffer out, byte version, byte type, int payloadLength) {
+		out.putShort((short) (payloadLength + 2));
+		out.put(version);
+		out.put(type);
+	}
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+/**
+ * Remembers which of the recent sequence numbers were received. Events which
+ * arrive twice, e.g. via multicast and as repair over TCP, are detected and
+ * gaps can be requested again.
+ *
+ * This class is not thread-safe.
+ */
+public class SequenceWindow {
+
+	// number of sequence numbers below the newest one which are tracked
+	private static final int SIZE = 64;
+
+	private long last = -1;
+	// bit i is set when last - i was received
+	private long mask;
+
+	/**
+	 * forget everything and treat all events up to the sequence number as
+	 * received
+	 *
+	 * @param sequence sequence number of the newest known event
+	 */
+	public void reset(long sequence) {
+		last = sequence;
+		mask = ~0L;
+	}
+
+	/**
+	 * mark a sequence number as received
+	 *
+	 * @param sequence sequence number of a new event
+	 * @return false if the event was already received or is too old to tell
+	 */
+	public boolean add(long sequence) {
+		if (last < 0) {
+			reset(sequence);
+			return true;
+		}
+		if (sequence > last) {
+			long shift = sequence - last;
+			mask = shift >= SIZE ? 1 : (mask << shift) | 1;
+			last = sequence;
+			return true;
+		}
+		long distance = last - sequence;
+		if (distance >= SIZE || (mask & (1L << distance)) != 0) {
+			return false;
+		}
+		mask |= 1L << distance;
+		return true;
+	}
+
+	/**
+	 * @return the newest received sequence number, -1 if nothing was received
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * @return number of missing events below the newest one
+	 */
+	public int getMissing() {
+		return last < 0 ? 0 : (int) Math.min(SIZE - Long.bitCount(mask), last);
+	}
+
+	/**
+	 * @return sequence number before the oldest missing event, the newest one if
+	 *         nothing is missing
+	 */
+	public long getRepairAfter() {
+		if (getMissing() == 0) {
+			return last;
+		}
+		long oldest = Math.min(63 - Long.numberOfLeadingZeros(~mask), last - 1);
+		return last - oldest - 1;
+	}
+}
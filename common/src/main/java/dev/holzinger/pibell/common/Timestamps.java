@@ -0,0 +1,47 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts {@link System#nanoTime()} values into wall clock timestamps without
+ * allocating memory.
+ */
+public final class Timestamps {
+
+	// difference between the wall clock and the monotonic clock in nanoseconds,
+	// measured once at startup
+	private static final long OFFSET = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+	private Timestamps() {
+	}
+
+	/**
+	 * @param nanoTime value of {@link System#nanoTime()}
+	 * @return the same point in time in microseconds since the epoch
+	 */
+	public static long toEpochMicros(long nanoTime) {
+		return (nanoTime + OFFSET) / 1000;
+	}
+
+	/**
+	 * @return current time in microseconds since the epoch
+	 */
+	public static long nowMicros() {
+		return toEpochMicros(System.nanoTime());
+	}
+}
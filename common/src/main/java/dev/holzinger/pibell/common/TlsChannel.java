@@ -0,0 +1,385 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS for a non-blocking {@link SocketChannel} with an {@link SSLEngine}. It
+ * reads and writes plain data like the channel itself, the handshake is done
+ * on the way.
+ *
+ * The engine only works with buffers for a complete record (about 16 KiB), so
+ * these are shared by all connections of a thread in a {@link Scratch}. A
+ * connection only keeps the bytes which could not be passed on yet, an idle
+ * connection needs no buffer at all.
+ *
+ * This class is not thread-safe.
+ */
+public class TlsChannel {
+
+	/**
+	 * Record sized buffers of one thread, they may be shared by all its
+	 * connections.
+	 */
+	public static class Scratch {
+		ByteBuffer netIn;
+		ByteBuffer netOut;
+		ByteBuffer appIn;
+
+		/**
+		 * @param context context of the connections, it determines the buffer
+		 *                sizes
+		 */
+		public Scratch(SSLContext context) {
+			SSLSession session = context.createSSLEngine().getSession();
+			netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		}
+	}
+
+	/**
+	 * create the context of a server
+	 *
+	 * @param keystore PKCS12 or JKS file with the private key and certificate
+	 * @param password password of the keystore and the key
+	 * @return the context
+	 * @throws IOException if the keystore cannot be read or is invalid
+	 */
+	public static SSLContext serverContext(Path keystore, char[] password) throws IOException {
+		try {
+			KeyStore store = KeyStore.getInstance(keystore.toFile(), password);
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(store, password);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keys.getKeyManagers(), null, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Keystore " + keystore + " ungültig: " + e.getMessage(), e);
+		}
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final Scratch scratch;
+
+	// received bytes of an incomplete record, decrypted bytes which did not fit
+	// into the buffer of the reader and encrypted bytes the socket did not
+	// take yet, null when empty
+	private ByteBuffer pendingIn;
+	private ByteBuffer plain;
+	private ByteBuffer pendingOut;
+
+	private final long started = System.nanoTime();
+	private long handshakeNanos = -1;
+	private boolean resumed;
+
+	/**
+	 * start the handshake
+	 *
+	 * @param channel connected channel
+	 * @param engine  engine in client or server mode
+	 * @param scratch buffers of the thread which uses the channel
+	 * @throws IOException if the first handshake message cannot be sent
+	 */
+	public TlsChannel(SocketChannel channel, SSLEngine engine, Scratch scratch) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		this.scratch = scratch;
+		engine.beginHandshake();
+		handshake();
+	}
+
+	/**
+	 * @return true after the handshake
+	 */
+	public boolean isHandshakeComplete() {
+		return handshakeNanos >= 0;
+	}
+
+	/**
+	 * @return duration of the handshake in nanoseconds, -1 if it is not complete
+	 */
+	public long getHandshakeNanos() {
+		return handshakeNanos;
+	}
+
+	/**
+	 * @return true if the handshake resumed an earlier session, which saves the
+	 *         expensive public key operations
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * @return true if decrypted data is waiting, the socket will not become
+	 *         readable for it
+	 */
+	public boolean hasBufferedInput() {
+		return plain != null;
+	}
+
+	/**
+	 * @return true if encrypted data is waiting for the socket to become
+	 *         writable
+	 */
+	public boolean hasPendingOutput() {
+		return pendingOut != null;
+	}
+
+	/**
+	 * read and decrypt the available data
+	 *
+	 * @param dst buffer for the plain data
+	 * @return number of plain bytes, -1 at the end of the stream
+	 * @throws IOException if reading failed or the peer violated the protocol
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (plain != null) {
+			return drainPlain(dst);
+		}
+		ByteBuffer netIn = scratch.netIn;
+		netIn.clear();
+		if (pendingIn != null) {
+			netIn.put(pendingIn);
+			pendingIn = null;
+		}
+		int n = channel.read(netIn);
+		netIn.flip();
+		ByteBuffer appIn = scratch.appIn;
+		appIn.clear();
+		while (netIn.hasRemaining()) {
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+				if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+					// the record is bigger than the buffer, it is kept in pendingIn
+					scratch.netIn = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(),
+							netIn.capacity() * 2));
+				}
+				break;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				// the session may need bigger buffers after the handshake
+				growScratch(appIn.position());
+				appIn = scratch.appIn;
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				n = -1;
+				break;
+			}
+			finished(result);
+			handshake();
+			if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+					&& engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+				break;
+			}
+		}
+		if (netIn.hasRemaining()) {
+			pendingIn = copy(netIn);
+		}
+		appIn.flip();
+		if (appIn.hasRemaining()) {
+			plain = copy(appIn);
+			return drainPlain(dst);
+		}
+		if (n < 0) {
+			try {
+				engine.closeInbound();
+			} catch (SSLException e) {
+				// the peer did not send close_notify, the data is complete anyway
+			}
+			return -1;
+		}
+		return 0;
+	}
+
+	/**
+	 * encrypt and write the data without blocking
+	 *
+	 * @param src plain data
+	 * @return number of bytes taken from the buffer, 0 if encrypted data of an
+	 *         earlier write is still waiting
+	 * @throws IOException if writing failed
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		if (!flush() || !isHandshakeComplete()) {
+			return 0;
+		}
+		int consumed = 0;
+		while (src.hasRemaining() && pendingOut == null) {
+			ByteBuffer netOut = scratch.netOut;
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				growScratch(0);
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS Verbindung geschlossen");
+			}
+			consumed += result.bytesConsumed();
+			netOut.flip();
+			send(netOut);
+			handshake();
+		}
+		return consumed;
+	}
+
+	/**
+	 * write the waiting encrypted data
+	 *
+	 * @return true if nothing is waiting any more
+	 * @throws IOException if writing failed
+	 */
+	public boolean flush() throws IOException {
+		if (pendingOut != null) {
+			channel.write(pendingOut);
+			if (pendingOut.hasRemaining()) {
+				return false;
+			}
+			pendingOut = null;
+		}
+		return true;
+	}
+
+	/**
+	 * send close_notify if the socket takes it, the channel is not closed
+	 */
+	public void close() {
+		engine.closeOutbound();
+		try {
+			ByteBuffer netOut = scratch.netOut;
+			netOut.clear();
+			engine.wrap(EMPTY, netOut);
+			netOut.flip();
+			if (pendingOut == null) {
+				channel.write(netOut);
+			}
+		} catch (IOException e) {
+			// the connection is closed anyway
+		}
+	}
+
+	/**
+	 * run the handshake steps which do not need data from the peer
+	 */
+	private void handshake() throws IOException {
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+					break;
+				case NEED_WRAP:
+					ByteBuffer netOut = scratch.netOut;
+					netOut.clear();
+					SSLEngineResult result = engine.wrap(EMPTY, netOut);
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						growScratch(0);
+						break;
+					}
+					netOut.flip();
+					send(netOut);
+					finished(result);
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						return;
+					}
+					break;
+				default:
+					return;
+			}
+		}
+	}
+
+	private void finished(SSLEngineResult result) {
+		if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && handshakeNanos < 0) {
+			handshakeNanos = System.nanoTime() - started;
+			// a resumed session was created by an earlier handshake
+			resumed = engine.getSession().getCreationTime() < System.currentTimeMillis()
+					- Math.max(1, handshakeNanos / 1000000);
+		}
+	}
+
+	/**
+	 * write the encrypted data behind the waiting data
+	 */
+	private void send(ByteBuffer netOut) throws IOException {
+		if (pendingOut == null) {
+			channel.write(netOut);
+			if (netOut.hasRemaining()) {
+				pendingOut = copy(netOut);
+			}
+			return;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(pendingOut.remaining() + netOut.remaining());
+		bigger.put(pendingOut).put(netOut).flip();
+		pendingOut = bigger;
+	}
+
+	private int drainPlain(ByteBuffer dst) {
+		int n = Math.min(dst.remaining(), plain.remaining());
+		ByteBuffer slice = plain.duplicate();
+		slice.limit(slice.position() + n);
+		dst.put(slice);
+		plain.position(plain.position() + n);
+		if (!plain.hasRemaining()) {
+			plain = null;
+		}
+		return n;
+	}
+
+	/**
+	 * make the shared buffers as big as the session needs, keep the first bytes
+	 * of the decrypted data
+	 */
+	private void growScratch(int keep) {
+		SSLSession session = engine.getSession();
+		if (scratch.netOut.capacity() < session.getPacketBufferSize()) {
+			scratch.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		}
+		ByteBuffer appIn = ByteBuffer.allocate(Math.max(session.getApplicationBufferSize(),
+				scratch.appIn.capacity() * 2));
+		scratch.appIn.flip();
+		scratch.appIn.limit(keep);
+		appIn.put(scratch.appIn);
+		scratch.appIn = appIn;
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer).flip();
+		return copy;
+	}
+}
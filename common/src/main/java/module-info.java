@@ -0,0 +1,3 @@
+module dev.holzinger.pibell.common {
+    exports dev.holzinger.pibell.common;
+}
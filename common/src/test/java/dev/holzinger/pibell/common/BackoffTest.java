@@ -0,0 +1,78 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BackoffTest {
+
+	@Test
+	void boundDoublesUntilTheCap() {
+		Backoff backoff = new Backoff(100, 1000, 60000);
+		long[] bounds = { 100, 200, 400, 800, 1000, 1000 };
+		for (long bound : bounds) {
+			long delay = backoff.nextDelay();
+			assertTrue(delay >= 0 && delay <= bound, delay + " > " + bound);
+			assertEquals(delay, backoff.getLastDelay());
+		}
+		assertEquals(bounds.length, backoff.getAttempt());
+	}
+
+	@Test
+	void delaysAreJittered() {
+		Backoff backoff = new Backoff(1000, 1000, 60000);
+		long first = backoff.nextDelay();
+		boolean different = false;
+		for (int i = 0; i < 100 && !different; i++) {
+			different = backoff.nextDelay() != first;
+		}
+		assertTrue(different);
+	}
+
+	@Test
+	void manyAttemptsDoNotOverflow() {
+		Backoff backoff = new Backoff(250, 30000, 60000);
+		for (int i = 0; i < 100; i++) {
+			long delay = backoff.nextDelay();
+			assertTrue(delay >= 0 && delay <= 30000);
+		}
+	}
+
+	@Test
+	void healthyConnectionResets() {
+		Backoff backoff = new Backoff(100, 1000, 0);
+		backoff.nextDelay();
+		backoff.nextDelay();
+		backoff.connected();
+		backoff.disconnected();
+		assertEquals(0, backoff.getAttempt());
+	}
+
+	@Test
+	void shortConnectionKeepsTheBackoff() {
+		Backoff backoff = new Backoff(100, 1000, 60000);
+		backoff.nextDelay();
+		backoff.nextDelay();
+		backoff.connected();
+		backoff.disconnected();
+		assertEquals(2, backoff.getAttempt());
+		backoff.reset();
+		assertEquals(0, backoff.getAttempt());
+	}
+}
@@ -0,0 +1,188 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Frames written with {@link Protocol} and read back with {@link Frame}.
+ */
+class FrameTest {
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(256);
+	private final Frame frame = new Frame();
+
+	@Test
+	void event() throws IOException {
+		Protocol.writeEvent(buffer, Protocol.RING, 42, 1234567, 3);
+		assertEquals(Protocol.EVENT_SIZE, buffer.position());
+		read();
+		assertEquals(Protocol.VERSION, frame.getVersion());
+		assertEquals(Protocol.RING, frame.getType());
+		assertEquals(42, frame.getSequence());
+		assertEquals(1234567, frame.getTimestamp());
+		assertEquals(3, frame.getChannel());
+	}
+
+	@Test
+	void eventOfAnOldServerHasChannelZero() throws IOException {
+		Protocol.writeHeader(buffer, Protocol.RING, 16);
+		buffer.putLong(7).putLong(8);
+		read();
+		assertEquals(7, frame.getSequence());
+		assertEquals(0, frame.getChannel());
+	}
+
+	@Test
+	void hello() throws IOException {
+		Protocol.writeHello(buffer, 99, (byte) (Protocol.FLAG_MULTICAST | Protocol.FLAG_ACK));
+		read();
+		assertEquals(Protocol.HELLO, frame.getType());
+		assertEquals(99, frame.getSequence());
+		assertEquals(Protocol.FLAG_MULTICAST | Protocol.FLAG_ACK, frame.getFlags());
+	}
+
+	@Test
+	void helloWithoutReplay() throws IOException {
+		Protocol.writeHello(buffer);
+		read();
+		assertEquals(-1, frame.getSequence());
+		assertEquals(0, frame.getFlags());
+	}
+
+	@Test
+	void welcome() throws IOException {
+		Protocol.writeWelcome(buffer, Protocol.VERSION, 5, 3000, null);
+		read();
+		assertEquals(Protocol.WELCOME, frame.getType());
+		assertEquals(5, frame.getSequence());
+		assertEquals(3000, frame.getInt(8));
+		assertNull(frame.getGroup());
+	}
+
+	@Test
+	void welcomeWithMulticastGroup() throws IOException {
+		InetSocketAddress group = new InetSocketAddress("239.1.2.3", 12322);
+		Protocol.writeWelcome(buffer, Protocol.VERSION, 5, 3000, group);
+		read();
+		assertEquals(group, frame.getGroup());
+	}
+
+	@Test
+	void drain() throws IOException {
+		Protocol.writeDrain(buffer, 17, 2000);
+		read();
+		assertEquals(Protocol.DRAIN, frame.getType());
+		assertEquals(17, frame.getSequence());
+		assertEquals(2000, frame.getInt(8));
+	}
+
+	@Test
+	void names() throws IOException {
+		String[] names = { "haustür", "garten" };
+		Protocol.writeNames(buffer, Protocol.CHANNELS, names);
+		assertEquals(Protocol.namesSize(names), buffer.position());
+		read();
+		assertArrayEquals(names, frame.getNames());
+	}
+
+	@Test
+	void truncatedNames() throws IOException {
+		Protocol.writeHeader(buffer, Protocol.CHANNELS, 3);
+		buffer.put((byte) 1).put((byte) 5).put((byte) 'a');
+		read();
+		assertThrows(ProtocolException.class, frame::getNames);
+	}
+
+	@Test
+	void incompleteFrame() throws IOException {
+		Protocol.writeAck(buffer, 1);
+		buffer.flip();
+		buffer.limit(buffer.limit() - 1);
+		assertFalse(frame.read(buffer));
+		// nothing was consumed
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	void consecutiveFrames() throws IOException {
+		Protocol.writeRepair(buffer, 10);
+		Protocol.writeAck(buffer, 11);
+		buffer.flip();
+		assertTrue(frame.read(buffer));
+		assertEquals(Protocol.REPAIR, frame.getType());
+		assertEquals(10, frame.getSequence());
+		assertTrue(frame.read(buffer));
+		assertEquals(Protocol.ACK, frame.getType());
+		assertEquals(11, frame.getSequence());
+		assertFalse(frame.read(buffer));
+	}
+
+	@Test
+	void shortEventIsRejected() {
+		Protocol.writeHeader(buffer, Protocol.RING, 8);
+		buffer.putLong(1);
+		buffer.flip();
+		assertThrows(ProtocolException.class, () -> frame.read(buffer));
+	}
+
+	@Test
+	void invalidLengthIsRejected() {
+		buffer.putShort((short) 1).put((byte) 0);
+		buffer.flip();
+		assertThrows(ProtocolException.class, () -> frame.read(buffer));
+	}
+
+	@Test
+	void readFromStream() throws IOException {
+		Protocol.writePing(buffer, 8);
+		Protocol.writeEvent(buffer, Protocol.RING, 9, 10, 0);
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+		frame.read(in);
+		assertEquals(Protocol.PING, frame.getType());
+		assertEquals(8, frame.getSequence());
+		frame.read(in);
+		assertEquals(9, frame.getSequence());
+		assertEquals(10, frame.getTimestamp());
+	}
+
+	@Test
+	void controlFramesAreNoEvents() {
+		assertFalse(Protocol.isEvent(Protocol.DRAIN));
+		assertTrue(Protocol.isEvent(Protocol.RING));
+	}
+
+	private void read() throws ProtocolException {
+		buffer.flip();
+		assertTrue(frame.read(buffer));
+		assertFalse(buffer.hasRemaining());
+	}
+}
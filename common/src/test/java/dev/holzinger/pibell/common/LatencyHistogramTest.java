@@ -0,0 +1,90 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	@Test
+	void emptyHistogram() {
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getQuantile(0.99));
+	}
+
+	@Test
+	void smallValuesAreExact() {
+		for (int value = 0; value < 16; value++) {
+			histogram.record(value);
+		}
+		assertEquals(16, histogram.getCount());
+		assertEquals(120, histogram.getSum());
+		assertEquals(0, histogram.getQuantile(0));
+		assertEquals(7, histogram.getQuantile(0.5));
+		assertEquals(15, histogram.getQuantile(1));
+	}
+
+	@Test
+	void quantileIsWithinTheBucketPrecision() {
+		for (int value = 1; value <= 100000; value++) {
+			histogram.record(value);
+		}
+		double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+		for (double quantile : quantiles) {
+			long exact = (long) Math.ceil(quantile * 100000);
+			long value = histogram.getQuantile(quantile);
+			// the upper bound of the bucket is returned
+			assertTrue(value >= exact && value <= exact * 1.0625, quantile + ": " + value + " for " + exact);
+		}
+	}
+
+	@Test
+	void negativeValueIsRecordedAsZero() {
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getSum());
+		assertEquals(0, histogram.getQuantile(0.5));
+	}
+
+	@Test
+	void hugeValueFallsIntoTheLastBucket() {
+		histogram.record(Long.MAX_VALUE);
+		assertTrue(histogram.getQuantile(1) >= 1L << 40);
+	}
+
+	@Test
+	void concurrentRecording() throws InterruptedException {
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					histogram.record(100);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, histogram.getCount());
+		assertEquals(4000000, histogram.getSum());
+	}
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SequenceWindowTest {
+
+	private final SequenceWindow window = new SequenceWindow();
+
+	@Test
+	void firstEventStartsTheWindow() {
+		assertEquals(-1, window.getLast());
+		assertEquals(0, window.getMissing());
+		assertTrue(window.add(10));
+		assertEquals(10, window.getLast());
+		assertEquals(0, window.getMissing());
+		assertEquals(10, window.getRepairAfter());
+	}
+
+	@Test
+	void duplicateIsDetected() {
+		window.add(10);
+		assertTrue(window.add(11));
+		assertFalse(window.add(11));
+		assertFalse(window.add(10));
+	}
+
+	@Test
+	void gapIsRepairedFromItsStart() {
+		window.add(10);
+		window.add(13);
+		assertEquals(2, window.getMissing());
+		assertEquals(10, window.getRepairAfter());
+
+		// the repaired event arrives late
+		assertTrue(window.add(11));
+		assertEquals(1, window.getMissing());
+		assertEquals(11, window.getRepairAfter());
+		assertTrue(window.add(12));
+		assertEquals(0, window.getMissing());
+		assertEquals(13, window.getRepairAfter());
+		assertFalse(window.add(12));
+	}
+
+	@Test
+	void severalGaps() {
+		window.add(1);
+		window.add(3);
+		window.add(6);
+		assertEquals(3, window.getMissing());
+		assertEquals(1, window.getRepairAfter());
+		window.add(2);
+		assertEquals(3, window.getRepairAfter());
+	}
+
+	@Test
+	void eventsBeforeTheFirstAreNotMissing() {
+		window.reset(0);
+		window.add(3);
+		assertEquals(2, window.getMissing());
+		assertEquals(0, window.getRepairAfter());
+	}
+
+	@Test
+	void tooOldEventIsRejected() {
+		window.add(1);
+		window.add(100);
+		assertFalse(window.add(36));
+		assertTrue(window.add(37));
+	}
+
+	@Test
+	void jumpBeyondTheWindow() {
+		window.add(10);
+		window.add(200);
+		// only the 63 events below the newest one are tracked
+		assertEquals(63, window.getMissing());
+		assertEquals(136, window.getRepairAfter());
+		assertFalse(window.add(10));
+	}
+
+	@Test
+	void resetTreatsEverythingAsReceived() {
+		window.add(10);
+		window.add(20);
+		window.reset(50);
+		assertEquals(50, window.getLast());
+		assertEquals(0, window.getMissing());
+		assertFalse(window.add(49));
+		assertTrue(window.add(51));
+	}
+}
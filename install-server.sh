@@ -11,19 +11,36 @@ NAME=pibell
 mkdir -p /opt/$NAME
 
 # compile the server code
-mvn --projects server package
+mvn --projects server --also-make package
 
 # move server jar into dir
 mv ./server/target/server*.jar /opt/$NAME/server.jar
 
 mvn clean
 
+# systemd owns the listening socket, it stays open while the service restarts
+# and new connections wait in the backlog for the next server process
+cat > /etc/systemd/system/$NAME.socket << EOF
+[Unit]
+Description=$NAME socket
+
+[Socket]
+ListenStream=12321
+Backlog=1024
+NoDelay=true
+
+[Install]
+WantedBy=sockets.target
+
+EOF
+
 # create a systemd unit to autostart the program
 cat > /etc/systemd/system/$NAME.service << EOF
 [Unit]
 Description=$NAME service
 Wants=network-online.target
-After=network-online.target
+After=network-online.target $NAME.socket
+Requires=$NAME.socket
 
 
 [Service]
@@ -32,7 +49,14 @@ Restart=on-failure
 User=pi
 ProtectSystem=full
 PrivateTmp=true
-ExecStart=java -jar /opt/$NAME/server.jar
+# /var/lib/$NAME keeps the event journal for reconnecting clients
+StateDirectory=$NAME
+# the listening socket is passed as standard input, the output still goes to
+# the journal
+StandardInput=socket
+StandardOutput=journal
+StandardError=journal
+ExecStart=java -jar /opt/$NAME/server.jar --journal /var/lib/$NAME/journal
 
 [Install]
 WantedBy=default.target
@@ -41,4 +65,7 @@ EOF
 
 # enable and start the unit
 systemctl daemon-reload
-systemctl enable --now $NAME.service
+systemctl enable $NAME.socket $NAME.service
+# a running server of an older installation still holds the port
+systemctl stop $NAME.service
+systemctl start $NAME.socket $NAME.service
@@ -0,0 +1,207 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import dev.holzinger.pibell.common.Protocol;
+
+/**
+ * Thread-safe set of all connected clients with an index of the subscribers
+ * of each channel, so an event only touches the interested clients. The event
+ * loop adds, removes and writes to the clients, other threads may read the
+ * size and the counters at any time.
+ */
+public class ClientRegistry {
+
+	private final Set<Connection> clients = ConcurrentHashMap.newKeySet();
+	// number of connections per ip address, only used by the event loop
+	private final Map<String, Integer> perAddress = new HashMap<String, Integer>();
+	// subscribers of each channel
+	private final List<Set<Connection>> subscribers = new ArrayList<Set<Connection>>(Protocol.MAX_CHANNELS);
+	private final OverflowPolicy policy;
+
+	// counters for the slow clients, one per policy
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	/**
+	 * @param policy what to do if the queue of a client is full
+	 */
+	public ClientRegistry(OverflowPolicy policy) {
+		this.policy = policy;
+		for (int i = 0; i < Protocol.MAX_CHANNELS; i++) {
+			subscribers.add(ConcurrentHashMap.newKeySet());
+		}
+	}
+
+	void add(Connection client) {
+		clients.add(client);
+		perAddress.merge(client.getAddress(), 1, Integer::sum);
+		index(client, client.channels);
+	}
+
+	boolean remove(Connection client) {
+		unindex(client, client.channels);
+		if (!clients.remove(client)) {
+			return false;
+		}
+		// the entry is removed when the count drops to zero
+		perAddress.computeIfPresent(client.getAddress(), (address, n) -> n > 1 ? n - 1 : null);
+		return true;
+	}
+
+	/**
+	 * @param address ip address
+	 * @return number of connections from the address
+	 */
+	int count(String address) {
+		return perAddress.getOrDefault(address, 0);
+	}
+
+	/**
+	 * change the channels of a connected client
+	 *
+	 * @param channels bit i is set if the client wants channel i
+	 */
+	void subscribe(Connection client, long channels) {
+		if (!clients.contains(client)) {
+			client.channels = channels;
+			return;
+		}
+		unindex(client, client.channels & ~channels);
+		index(client, channels & ~client.channels);
+		client.channels = channels;
+	}
+
+	private void index(Connection client, long channels) {
+		for (int i = 0; i < Protocol.MAX_CHANNELS; i++) {
+			if ((channels & 1L << i) != 0) {
+				subscribers.get(i).add(client);
+			}
+		}
+	}
+
+	private void unindex(Connection client, long channels) {
+		for (int i = 0; i < Protocol.MAX_CHANNELS; i++) {
+			if ((channels & 1L << i) != 0) {
+				subscribers.get(i).remove(client);
+			}
+		}
+	}
+
+	/**
+	 * @return number of connected clients
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	Iterator<Connection> iterator() {
+		return clients.iterator();
+	}
+
+	/**
+	 * @param channel channel number
+	 * @return the clients which want the events of the channel, removing a
+	 *         client while iterating is allowed
+	 */
+	Iterator<Connection> subscribers(int channel) {
+		return subscribers.get(channel).iterator();
+	}
+
+	/**
+	 * send an event frame to the client and apply the overflow policy if its
+	 * queue is full
+	 *
+	 * @return false if the client must be disconnected
+	 * @throws IOException if the write failed
+	 */
+	boolean send(Connection client, ByteBuffer frame) throws IOException {
+		if (client.send(frame)) {
+			return true;
+		}
+		switch (policy) {
+			case DROP_OLDEST:
+				// if no queued event can be dropped the new one is dropped instead
+				client.dropOldest(frame, false);
+				dropped.increment();
+				return true;
+			case COALESCE:
+				if (client.replaceNewest(frame)) {
+					coalesced.increment();
+				} else {
+					// the newest frame is in flight or a control frame
+					dropped.increment();
+				}
+				return true;
+			default:
+				evicted.increment();
+				return false;
+		}
+	}
+
+	/**
+	 * send a control frame, e.g. the welcome, which must reach the client. If
+	 * the queue is full the oldest queued event makes room for it.
+	 *
+	 * @return false if the queue only holds control frames, the client must be
+	 *         disconnected
+	 * @throws IOException if the write failed
+	 */
+	boolean sendControl(Connection client, ByteBuffer frame) throws IOException {
+		if (client.sendControl(frame)) {
+			return true;
+		}
+		if (client.dropOldest(frame, true)) {
+			dropped.increment();
+			return true;
+		}
+		evicted.increment();
+		return false;
+	}
+
+	/**
+	 * @return number of messages dropped because a client queue was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return number of messages merged because of {@link OverflowPolicy#COALESCE}
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * @return number of clients closed because of {@link OverflowPolicy#DISCONNECT}
+	 */
+	public long getEvicted() {
+		return evicted.sum();
+	}
+}
@@ -0,0 +1,347 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import dev.holzinger.pibell.common.Protocol;
+
+/**
+ * Settings of the server, parsed from the command line.
+ */
+public class Config {
+
+	// address and port to listen on
+	public String ip = "0.0.0.0";
+	public int port = 12321;
+
+	// pending connections queued by the kernel, a reconnect storm waits there
+	// while accepting is throttled
+	public int backlog = 128;
+	// accepted connections per second and burst, 0 to disable the limit
+	public int acceptRate = 50;
+	public int acceptBurst = 100;
+	// connection limits for the whole server and for each ip address, 0 to
+	// disable them
+	public int maxConnections = 4096;
+	public int maxConnectionsPerAddress = 32;
+
+	// number of messages which can be queued per client before the overflow
+	// policy is applied
+	public int queueSize = 16;
+	public OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+	// a bouncing contact must not ring more than once per window, the input
+	// must stay high for the hold time to count as ring
+	public int debounceWindow = 300;
+	public int minHold = 0;
+
+	// where the edges come from, see InputSource.create()
+	public String input = "gpio";
+	// wiringPi number of the gpio pin
+	public int pin = 2;
+
+	// name and input of each channel, the input is a pin number or an input
+	// source. Empty for a single channel with the input and pin above.
+	public Map<String, String> channels = new LinkedHashMap<String, String>();
+
+	// directory of the event journal, null to disable it
+	public Path journal;
+
+	// interval of the heartbeats, a client which did not answer within the
+	// timeout is disconnected
+	public int heartbeatInterval = 3000;
+	public int heartbeatTimeout = 10000;
+
+	// an event which a client did not acknowledge within the timeout is sent
+	// again, 0 to disable the tracking
+	public int ackTimeout = 1000;
+
+	// multicast group for the events, null to send them over TCP only
+	public InetSocketAddress multicast;
+	public int multicastTtl = 1;
+
+	// messages below this level are not logged
+	public Log.Level logLevel = Log.Level.INFO;
+
+	// address of the Prometheus metrics endpoint, null to disable it
+	public InetSocketAddress metrics;
+
+	// upstream server in relay mode, null to read the gpio input
+	public InetSocketAddress relay;
+	// the connection to the upstream server uses TLS
+	public boolean relayTls;
+
+	// keystore with the key and certificate of the server, null to accept plain
+	// connections. The password can also come from the environment so that it
+	// does not show up in the process list.
+	public Path tlsKeystore;
+	public char[] tlsPassword = passwordFromEnvironment();
+
+	/**
+	 * @return help text for all options
+	 */
+	public static String usage() {
+		return "pibell [OPTIONS] [LISTEN_ADDRESS:PORT]\n"
+				+ "  --backlog N          Warteschlange für neue Verbindungen im Kernel (128)\n"
+				+ "  --accept-rate N      neue Verbindungen pro Sekunde, 0 ohne Grenze (50)\n"
+				+ "  --accept-burst N     so viele Verbindungen auf einmal annehmen (100)\n"
+				+ "  --max-connections N  Verbindungen insgesamt, 0 ohne Grenze (4096)\n"
+				+ "  --max-connections-per-address N  Verbindungen pro IP Adresse, 0 ohne Grenze (32)\n"
+				+ "  --queue-size N       Nachrichten pro Client in der Warteschlange (16)\n"
+				+ "  --overflow POLICY    drop-oldest, coalesce oder disconnect (drop-oldest)\n"
+				+ "  --debounce-window MS Mindestabstand zwischen zwei Klingeln (300)\n"
+				+ "  --min-hold MS        Mindestdauer des Klingelsignals, 0 zum Abschalten (0)\n"
+				+ "  --input SOURCE       gpio, gpiod:[CHIP:]LEITUNG, edges:DATEI, replay:DATEI oder storm:RATE pro Sekunde (gpio)\n"
+				+ "  --pin N              wiringPi Nummer des gpio Pins (2)\n"
+				+ "  --channel NAME=INPUT Kanal mit gpio Pin Nummer oder Eingabe, mehrfach möglich\n"
+				+ "  --journal DIR        Ereignisse für wiederverbundene Clients speichern (aus)\n"
+				+ "  --heartbeat-interval MS  Abstand der Heartbeats an die Clients (3000)\n"
+				+ "  --heartbeat-timeout MS   Clients ohne Antwort in dieser Zeit trennen (10000)\n"
+				+ "  --ack-timeout MS     unbestätigte Ereignisse danach erneut senden, 0 zum Abschalten (1000)\n"
+				+ "  --multicast GROUP:PORT   Ereignisse per UDP multicast senden (aus)\n"
+				+ "  --multicast-ttl N    TTL der multicast Pakete (1)\n"
+				+ "  --log-level LEVEL    debug, info, warn oder error (info)\n"
+				+ "  --metrics ADDRESS:PORT   Metriken unter http://ADDRESS:PORT/metrics (aus)\n"
+				+ "  --relay [tls://]HOST:PORT  Ereignisse eines anderen Servers weiterleiten statt gpio (aus)\n"
+				+ "  --tls-keystore FILE  nur TLS Verbindungen mit Schlüssel und Zertifikat aus dem Keystore (aus)\n"
+				+ "  --tls-password PASS  Passwort des Keystores, sonst aus PIBELL_TLS_PASSWORD\n";
+	}
+
+	/**
+	 * parse the command line arguments
+	 *
+	 * @param args command line arguments
+	 * @return the config
+	 * @throws IllegalArgumentException if an argument is invalid
+	 */
+	public static Config parse(String[] args) {
+		Config config = new Config();
+		boolean address = false;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				if (address) {
+					throw new IllegalArgumentException("Zu viele argumente");
+				}
+				config.parseAddress(arg);
+				address = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Option " + arg + " braucht einen Wert");
+			}
+			config.set(arg.substring(2), args[++i]);
+		}
+		if (config.tlsKeystore != null && config.multicast != null) {
+			// the multicast datagrams would carry the events unencrypted
+			throw new IllegalArgumentException("--multicast kann nicht mit --tls-keystore verwendet werden");
+		}
+		return config;
+	}
+
+	private void set(String option, String value) {
+		switch (option) {
+			case "backlog":
+				backlog = parsePositive(option, value);
+				break;
+			case "accept-rate":
+				acceptRate = parseNonNegative(option, value);
+				break;
+			case "accept-burst":
+				acceptBurst = parsePositive(option, value);
+				break;
+			case "max-connections":
+				maxConnections = parseNonNegative(option, value);
+				break;
+			case "max-connections-per-address":
+				maxConnectionsPerAddress = parseNonNegative(option, value);
+				break;
+			case "queue-size":
+				queueSize = parsePositive(option, value);
+				break;
+			case "overflow":
+				overflowPolicy = OverflowPolicy.parse(value);
+				break;
+			case "debounce-window":
+				debounceWindow = parseNonNegative(option, value);
+				break;
+			case "min-hold":
+				minHold = parseNonNegative(option, value);
+				break;
+			case "input":
+				input = value;
+				break;
+			case "pin":
+				pin = parseNonNegative(option, value);
+				break;
+			case "channel":
+				parseChannel(value);
+				break;
+			case "journal":
+				journal = Paths.get(value);
+				break;
+			case "heartbeat-interval":
+				heartbeatInterval = parsePositive(option, value);
+				break;
+			case "heartbeat-timeout":
+				heartbeatTimeout = parsePositive(option, value);
+				break;
+			case "ack-timeout":
+				ackTimeout = parseNonNegative(option, value);
+				break;
+			case "multicast":
+				multicast = parseMulticast(value);
+				break;
+			case "multicast-ttl":
+				multicastTtl = parsePositive(option, value);
+				break;
+			case "log-level":
+				logLevel = Log.Level.parse(value);
+				break;
+			case "metrics":
+				metrics = parseSocketAddress("http", value);
+				break;
+			case "relay":
+				relayTls = value.startsWith("tls://");
+				relay = parseUpstream(relayTls ? value.substring("tls://".length()) : value);
+				break;
+			case "tls-keystore":
+				tlsKeystore = Paths.get(value);
+				break;
+			case "tls-password":
+				tlsPassword = value.toCharArray();
+				break;
+			default:
+				throw new IllegalArgumentException("Unbekannte Option: --" + option);
+		}
+	}
+
+	private void parseChannel(String arg) {
+		int split = arg.indexOf('=');
+		if (split <= 0 || split == arg.length() - 1) {
+			throw new IllegalArgumentException("Kanal braucht NAME=EINGABE: " + arg);
+		}
+		String name = arg.substring(0, split);
+		if (name.getBytes(StandardCharsets.UTF_8).length > 255 || channels.containsKey(name)) {
+			throw new IllegalArgumentException("Ungültiger Kanalname: " + name);
+		}
+		if (channels.size() == Protocol.MAX_CHANNELS) {
+			throw new IllegalArgumentException("Maximal " + Protocol.MAX_CHANNELS + " Kanäle erlaubt");
+		}
+		channels.put(name, arg.substring(split + 1));
+	}
+
+	/**
+	 * @return name and input of each channel, the default channel if no channel
+	 *         was configured
+	 */
+	public Map<String, String> getChannels() {
+		if (!channels.isEmpty()) {
+			return channels;
+		}
+		Map<String, String> single = new LinkedHashMap<String, String>();
+		single.put("klingel", input.equals("gpio") ? String.valueOf(pin) : input);
+		return single;
+	}
+
+	private void parseAddress(String arg) {
+		try {
+			// WORKAROUND: add any scheme to make the resulting URI valid.
+			URI uri = new URI("tcp://" + arg); // may throw URISyntaxException
+			if (uri.getHost() == null || uri.getPort() == -1) {
+				throw new URISyntaxException(arg, "Verbindung braucht host and port Teil");
+			}
+
+			ip = uri.getHost();
+			port = uri.getPort();
+
+		} catch (URISyntaxException ex) {
+			throw new IllegalArgumentException(ex.getMessage(), ex);
+		}
+	}
+
+	private static char[] passwordFromEnvironment() {
+		String password = System.getenv("PIBELL_TLS_PASSWORD");
+		return password != null ? password.toCharArray() : new char[0];
+	}
+
+	private static InetSocketAddress parseMulticast(String arg) {
+		InetSocketAddress group = parseSocketAddress("udp", arg);
+		if (!group.getAddress().isMulticastAddress()) {
+			throw new IllegalArgumentException("Keine multicast Adresse: " + arg);
+		}
+		return group;
+	}
+
+	private static InetSocketAddress parseUpstream(String arg) {
+		try {
+			// WORKAROUND: add any scheme to make the resulting URI valid.
+			URI uri = new URI("tcp://" + arg); // may throw URISyntaxException
+			if (uri.getHost() == null || uri.getPort() == -1) {
+				throw new URISyntaxException(arg, "Verbindung braucht host and port Teil");
+			}
+			// resolved on every connect, the address of the upstream server may change
+			return InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort());
+		} catch (URISyntaxException ex) {
+			throw new IllegalArgumentException(ex.getMessage(), ex);
+		}
+	}
+
+	private static InetSocketAddress parseSocketAddress(String scheme, String arg) {
+		try {
+			// WORKAROUND: add any scheme to make the resulting URI valid.
+			URI uri = new URI(scheme + "://" + arg); // may throw URISyntaxException
+			if (uri.getHost() == null || uri.getPort() == -1) {
+				throw new URISyntaxException(arg, "Adresse braucht host und port Teil");
+			}
+			InetSocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort());
+			if (address.isUnresolved()) {
+				throw new IllegalArgumentException("Unbekannte Adresse: " + arg);
+			}
+			return address;
+		} catch (URISyntaxException ex) {
+			throw new IllegalArgumentException(ex.getMessage(), ex);
+		}
+	}
+
+	static int parsePositive(String option, String value) {
+		int n = parseNonNegative(option, value);
+		if (n == 0) {
+			throw new IllegalArgumentException("Ungültiger Wert für --" + option + ": " + value);
+		}
+		return n;
+	}
+
+	static int parseNonNegative(String option, String value) {
+		try {
+			int n = Integer.parseInt(value);
+			if (n >= 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// handled below
+		}
+		throw new IllegalArgumentException("Ungültiger Wert für --" + option + ": " + value);
+	}
+}
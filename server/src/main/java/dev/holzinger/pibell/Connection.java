@@ -0,0 +1,281 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.TlsChannel;
+
+/**
+ * State of a single client connection. Except for {@link #getAddress()} all
+ * methods must only be called by the event loop thread.
+ */
+class Connection {
+	// how the frames are sent to the client
+	static final byte TCP = 0;
+	// the HTTP request of a browser is not complete yet
+	static final byte HTTP = 1;
+	static final byte WEBSOCKET = 2;
+	static final byte SSE = 3;
+
+	final SocketChannel channel;
+	private final String address;
+	SelectionKey key;
+	// encrypts the data of the channel, null for a plain connection
+	TlsChannel tls;
+	// set when the handshake was counted in the metrics
+	boolean handshakeCounted;
+
+	// partially received frames from the client
+	ByteBuffer input = ByteBuffer.allocate(64);
+	// set after the handshake, events are only sent to ready clients
+	boolean ready;
+	byte version;
+	byte transport = TCP;
+	// close the connection as soon as the queue is written, e.g. after a HTTP
+	// response
+	boolean closing;
+	// set when the client receives the events via multicast
+	boolean multicast;
+	// bit i is set if the client wants the events of channel i, only changed by
+	// the ClientRegistry
+	long channels = ~0L;
+	// System.nanoTime() when the last data was received from the client
+	long lastReceived = System.nanoTime();
+
+	// events waiting for an acknowledgement, null if the client does not
+	// acknowledge
+	Outstanding outstanding;
+	// smoothed and maximum round-trip time of the acknowledgements in
+	// microseconds, volatile because the metrics read them from other threads
+	volatile long roundTrip;
+	volatile long maxRoundTrip;
+	volatile long retransmits;
+
+	// bounded ring of frames which could not be written yet, the first one may
+	// be partially written. A queued frame starts at position 0 until a part of
+	// it was written. Control frames are never dropped by the overflow policy.
+	private final ByteBuffer[] queue;
+	private final boolean[] control;
+	private int head;
+	private int size;
+
+	Connection(SocketChannel channel, int queueSize) throws IOException {
+		this.channel = channel;
+		this.address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+		this.queue = new ByteBuffer[queueSize];
+		this.control = new boolean[queueSize];
+	}
+
+	/**
+	 * @return ip address of the client
+	 */
+	String getAddress() {
+		return address;
+	}
+
+	/**
+	 * write the shared frame without blocking. Only when the socket buffer is
+	 * full a view of the frame is queued until the socket is writable again. The
+	 * position of the frame is not changed.
+	 *
+	 * @param frame shared event frame
+	 * @return false if the queue is full and the frame was not sent
+	 * @throws IOException if the write failed
+	 */
+	boolean send(ByteBuffer frame) throws IOException {
+		return send(frame, false);
+	}
+
+	/**
+	 * like {@link #send(ByteBuffer)} for a frame which the overflow policy must
+	 * not drop, e.g. the welcome or an HTTP response
+	 */
+	boolean sendControl(ByteBuffer frame) throws IOException {
+		return send(frame, true);
+	}
+
+	private boolean send(ByteBuffer frame, boolean isControl) throws IOException {
+		if (size > 0) {
+			if (size == queue.length) {
+				return false;
+			}
+			add(frame.slice(), isControl);
+			return true;
+		}
+		int start = frame.position();
+		write(frame);
+		if (frame.hasRemaining()) {
+			add(frame.position() == start ? frame.slice() : frame.duplicate(), isControl);
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if (tls != null && tls.hasPendingOutput()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		frame.position(start);
+		return true;
+	}
+
+	/**
+	 * @return true if all frames have been written
+	 */
+	boolean isIdle() {
+		return size == 0 && (tls == null || !tls.hasPendingOutput());
+	}
+
+	/**
+	 * drop the oldest event frame which was not started yet and queue the new
+	 * frame
+	 *
+	 * @param frame     new frame
+	 * @param isControl the new frame is a control frame
+	 * @return false if nothing could be dropped, the new frame is not queued then
+	 */
+	boolean dropOldest(ByteBuffer frame, boolean isControl) {
+		int oldest = queue[head].position() == 0 ? 0 : 1;
+		while (oldest < size && control[index(oldest)]) {
+			oldest++;
+		}
+		if (oldest >= size) {
+			return false;
+		}
+		// close the gap by moving the older frames one slot forward
+		for (int i = oldest; i > 0; i--) {
+			queue[index(i)] = queue[index(i - 1)];
+			control[index(i)] = control[index(i - 1)];
+		}
+		queue[head] = null;
+		head = index(1);
+		size--;
+		add(frame.slice(), isControl);
+		return true;
+	}
+
+	/**
+	 * replace the newest frame with the new event frame
+	 *
+	 * @return false if the newest frame is a control frame or already partially
+	 *         written, the new frame is not queued then
+	 */
+	boolean replaceNewest(ByteBuffer frame) {
+		int last = index(size - 1);
+		if (control[last] || queue[last].position() != 0) {
+			return false;
+		}
+		queue[last] = frame.slice();
+		return true;
+	}
+
+	/**
+	 * write queued frames after the socket became writable
+	 *
+	 * @throws IOException if the write failed
+	 */
+	void flush() throws IOException {
+		if (tls != null && !tls.flush()) {
+			return;
+		}
+		while (size > 0) {
+			ByteBuffer buffer = queue[head];
+			write(buffer);
+			if (buffer.hasRemaining()) {
+				return;
+			}
+			queue[head] = null;
+			head = index(1);
+			size--;
+		}
+		if (tls != null && tls.hasPendingOutput()) {
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * read the plain data of the client
+	 *
+	 * @return number of bytes read, -1 at the end of the stream
+	 * @throws IOException if reading failed
+	 */
+	int read(ByteBuffer buffer) throws IOException {
+		if (tls == null) {
+			return channel.read(buffer);
+		}
+		int n = tls.read(buffer);
+		// the handshake may have produced more than the socket took
+		if (tls.hasPendingOutput()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if more data was already received, the key will not become
+	 *         readable for it
+	 */
+	boolean hasBufferedInput() {
+		return tls != null && tls.hasBufferedInput();
+	}
+
+	/**
+	 * make room for a frame which does not fit into the input buffer
+	 *
+	 * @throws ProtocolException if the buffer would exceed the maximum frame size
+	 */
+	void growInput() throws ProtocolException {
+		if (input.capacity() >= Protocol.MAX_FRAME_SIZE) {
+			throw new ProtocolException("Frame zu groß");
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.min(input.capacity() * 2, Protocol.MAX_FRAME_SIZE));
+		input.flip();
+		bigger.put(input);
+		input = bigger;
+	}
+
+	void close() {
+		if (tls != null) {
+			tls.close();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore errors
+		}
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		if (tls != null) {
+			tls.write(buffer);
+		} else {
+			channel.write(buffer);
+		}
+	}
+
+	private void add(ByteBuffer buffer, boolean isControl) {
+		queue[index(size)] = buffer;
+		control[index(size)] = isControl;
+		size++;
+	}
+
+	private int index(int offset) {
+		return (head + offset) % queue.length;
+	}
+}
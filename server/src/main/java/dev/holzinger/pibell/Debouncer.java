@@ -0,0 +1,166 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Turns the raw edges of a bouncing bell contact into exactly one ring per
+ * press. A rising edge only counts as ring when the input stays high for the
+ * minimum hold time and the last ring is longer ago than the window. All raw
+ * edges are recorded in a fixed size ring buffer for diagnostics.
+ */
+public class Debouncer {
+
+	// number of raw edges kept in the ring buffer, must be a power of two
+	private static final int EDGE_BUFFER_SIZE = 256;
+
+	private final long windowNanos;
+	private final long holdNanos;
+	private final LongConsumer listener;
+	// only used to check the hold time
+	private final ScheduledExecutorService timer;
+
+	private final long[] edgeTimes = new long[EDGE_BUFFER_SIZE];
+	private final boolean[] edgeLevels = new boolean[EDGE_BUFFER_SIZE];
+	private long edgeCount;
+
+	private final LongAdder suppressed = new LongAdder();
+
+	private boolean high;
+	private long highSince;
+	// incremented on every edge so that an outdated hold check is ignored
+	private long generation;
+	private boolean rung;
+	private long lastRing;
+
+	/**
+	 * @param windowMillis minimum time between two rings
+	 * @param holdMillis   time the input must stay high, 0 to ring on the edge
+	 * @param listener     called with the {@link System#nanoTime()} of the
+	 *                     rising edge for every ring
+	 */
+	public Debouncer(long windowMillis, long holdMillis, LongConsumer listener) {
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+		this.listener = listener;
+		if (holdNanos > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "debouncer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			timer = null;
+		}
+	}
+
+	/**
+	 * feed a raw edge of the input
+	 *
+	 * @param high  new level of the input
+	 * @param nanos {@link System#nanoTime()} of the edge
+	 */
+	public synchronized void edge(boolean high, long nanos) {
+		int i = (int) (edgeCount++ & (EDGE_BUFFER_SIZE - 1));
+		edgeTimes[i] = nanos;
+		edgeLevels[i] = high;
+
+		if (high == this.high) {
+			// the level did not change, e.g. an edge was missed
+			if (high) {
+				suppressed.increment();
+			}
+			return;
+		}
+		this.high = high;
+		generation++;
+		if (!high) {
+			// we only care when the bell is pressed not when it is released
+			return;
+		}
+		highSince = nanos;
+		if (timer == null) {
+			ring(nanos);
+			return;
+		}
+		final long expected = generation;
+		timer.schedule(() -> checkHold(expected), holdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized void checkHold(long expected) {
+		if (expected == generation && high) {
+			ring(highSince);
+		} else {
+			// the input went low again before the hold time
+			suppressed.increment();
+		}
+	}
+
+	private void ring(long nanos) {
+		if (rung && nanos - lastRing < windowNanos) {
+			suppressed.increment();
+			return;
+		}
+		rung = true;
+		lastRing = nanos;
+		listener.accept(nanos);
+	}
+
+	/**
+	 * @return number of rising edges which did not result in a ring
+	 */
+	public long getSuppressed() {
+		return suppressed.sum();
+	}
+
+	/**
+	 * @return number of raw edges seen so far
+	 */
+	public synchronized long getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * copy the most recent raw edges, oldest first
+	 *
+	 * @param times  receives the {@link System#nanoTime()} of the edges
+	 * @param levels receives the level after the edges
+	 * @return number of copied edges
+	 */
+	public synchronized int recentEdges(long[] times, boolean[] levels) {
+		int n = (int) Math.min(Math.min(edgeCount, EDGE_BUFFER_SIZE), Math.min(times.length, levels.length));
+		for (int j = 0; j < n; j++) {
+			int i = (int) ((edgeCount - n + j) & (EDGE_BUFFER_SIZE - 1));
+			times[j] = edgeTimes[i];
+			levels[j] = edgeLevels[i];
+		}
+		return n;
+	}
+
+	/**
+	 * stop the hold timer
+	 */
+	public void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dev.holzinger.pibell.common.Backoff;
+
+/**
+ * Reads the edges as text lines, either from the gpiomon tool of libgpiod or
+ * from a file or named pipe.
+ *
+ * gpiomon waits for the edges with the gpio character device of the kernel and
+ * prints the time the kernel took in the interrupt handler. Since linux 5.7 this
+ * is CLOCK_MONOTONIC, the clock of {@link System#nanoTime()}, so the time of an
+ * edge does not include any delay of the pipe or this process. A single thread
+ * blocks on the pipe and calls the listener directly, it uses no cpu while the
+ * bell is quiet.
+ *
+ * A line contains the new level (1 or 0) and optionally the time of the edge in
+ * seconds and nanoseconds of CLOCK_MONOTONIC, e.g. "1 5123 250000000". Without
+ * a time, or with a time of another clock, the edge gets the time the line was
+ * read. Empty lines and lines starting with # are ignored.
+ *
+ * When gpiomon exits, e.g. because another process held the line for a moment,
+ * it is started again with an exponential backoff.
+ */
+public class EdgeStreamInputSource implements InputSource {
+
+	// a time further away than this is from another clock, e.g. CLOCK_REALTIME of
+	// an older kernel
+	private static final long MAX_CLOCK_OFFSET_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	// null if the edges are read from a file
+	private final List<String> command;
+	private final Path path;
+	private Process process;
+	private Thread thread;
+	private volatile boolean closed;
+
+	private EdgeStreamInputSource(List<String> command, Path path) {
+		this.command = command;
+		this.path = path;
+	}
+
+	/**
+	 * @param chip gpio chip, e.g. "gpiochip0"
+	 * @param line line offset of the chip, for the Raspberry Pi the BCM number
+	 * @return source which reads the edges from gpiomon
+	 */
+	public static EdgeStreamInputSource gpiomon(String chip, int line) {
+		// the bell is connected to 3.3V, like the pi4j source use the pull down
+		return new EdgeStreamInputSource(Arrays.asList("gpiomon", "--bias=pull-down", "--format=%e %s %n", chip,
+				String.valueOf(line)), null);
+	}
+
+	/**
+	 * @param path file or named pipe with one edge per line
+	 * @return source which reads the edges from the file, a named pipe is opened
+	 *         again when the writer closed it
+	 */
+	public static EdgeStreamInputSource file(Path path) {
+		return new EdgeStreamInputSource(null, path);
+	}
+
+	@Override
+	public void start(EdgeListener listener) throws IOException {
+		if (command != null) {
+			// fails here if gpiomon is not installed
+			startProcess();
+		} else if (!Files.isReadable(path)) {
+			throw new IOException(path + " kann nicht gelesen werden");
+		}
+		thread = new Thread(() -> read(listener), "gpio-edges");
+		thread.setDaemon(true);
+		// the time of an edge is taken by this thread if the line has none
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * @return the started gpiomon process or null if the source was closed
+	 */
+	private synchronized Process startProcess() throws IOException {
+		if (closed) {
+			return null;
+		}
+		process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		return process;
+	}
+
+	private void read(EdgeListener listener) {
+		try {
+			if (command != null) {
+				monitor(listener);
+				return;
+			}
+			do {
+				// opening a named pipe blocks until a writer opened it
+				read(listener, Files.newInputStream(path));
+			} while (!Files.isRegularFile(path) && !closed);
+		} catch (IOException e) {
+			if (!closed) {
+				Log.error("Flanken konnten nicht gelesen werden: {}", e.getMessage());
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * read the edges from gpiomon until the source is closed, start it again
+	 * whenever it exited
+	 */
+	private void monitor(EdgeListener listener) throws InterruptedException {
+		Backoff backoff = new Backoff(250, 30000, 60000);
+		Process running = process;
+		backoff.connected();
+		while (running != null) {
+			try {
+				read(listener, running.getInputStream());
+			} catch (IOException e) {
+				if (closed) {
+					return;
+				}
+				Log.warn("Flanken von gpiomon konnten nicht gelesen werden: {}", e.getMessage());
+				running.destroy();
+			}
+			int exitCode = running.waitFor();
+			if (closed) {
+				return;
+			}
+			backoff.disconnected();
+			running = null;
+			do {
+				long delay = backoff.nextDelay();
+				Log.warn("gpiomon wurde mit Exit Code {} beendet, neuer Start in {} ms", String.valueOf(exitCode),
+						delay);
+				Thread.sleep(delay);
+				try {
+					running = startProcess();
+					if (running == null) {
+						return;
+					}
+					backoff.connected();
+				} catch (IOException e) {
+					Log.error("gpiomon konnte nicht gestartet werden: {}", e.getMessage());
+				}
+			} while (running == null);
+		}
+	}
+
+	private static void read(EdgeListener listener, InputStream in) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				long now = System.nanoTime();
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					edge(listener, line, now);
+				} catch (IllegalArgumentException e) {
+					Log.warn("Ungültige Zeile in den Flanken: {}", line);
+				}
+			}
+		}
+	}
+
+	/**
+	 * parse a line and pass the edge to the listener
+	 *
+	 * @param now time the line was read
+	 * @throws IllegalArgumentException if the line is invalid
+	 */
+	static void edge(EdgeListener listener, String line, long now) {
+		String[] parts = line.split("\\s+");
+		if (!(parts[0].equals("0") || parts[0].equals("1")) || (parts.length != 1 && parts.length != 3)) {
+			throw new IllegalArgumentException(line);
+		}
+		long nanos = now;
+		if (parts.length == 3) {
+			long time = TimeUnit.SECONDS.toNanos(Long.parseLong(parts[1])) + Long.parseLong(parts[2]);
+			if (Math.abs(now - time) < MAX_CLOCK_OFFSET_NANOS) {
+				nanos = time;
+			}
+		}
+		listener.edge(parts[0].equals("1"), nanos);
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (process != null) {
+			process.destroy();
+			process = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+}
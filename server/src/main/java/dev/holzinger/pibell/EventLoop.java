@@ -0,0 +1,1248 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import dev.holzinger.pibell.common.Frame;
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.Timestamps;
+import dev.holzinger.pibell.common.TlsChannel;
+
+/**
+ * Non-blocking network engine of the server. A single thread accepts new
+ * clients, notices disconnects and writes the event frames to all clients
+ * using a {@link Selector}. Other threads (e.g. the gpio listener) only hand
+ * over a frame with {@link #broadcast(ByteBuffer)} and never wait for a
+ * socket.
+ *
+ * Browsers connect to the same port with HTTP and receive the events over
+ * WebSocket or as Server-Sent Events, see {@link Http}.
+ */
+public class EventLoop implements Runnable, Closeable {
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+
+	// maximum number of frames waiting for the loop thread, a ring storm must
+	// not grow the memory without limit
+	private static final int MAX_INCOMING = 1024;
+
+	// frames handed over by other threads, they are written by the loop thread
+	private final Queue<ByteBuffer> incoming = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger incomingSize = new AtomicInteger();
+	private final LongAdder incomingDropped = new LongAdder();
+
+	private final ClientRegistry clients;
+	// admission control, the bucket is null if the accept rate is unlimited
+	private final TokenBucket acceptTokens;
+	private final int maxConnections;
+	private final int maxConnectionsPerAddress;
+	private SelectionKey acceptKey;
+	private boolean acceptPaused;
+	private final Metrics metrics = new Metrics(this);
+	private final int queueSize;
+	// null if the journal is disabled
+	private Journal journal;
+
+	// number of recent events kept in memory to repair gaps without a journal
+	private static final int RECENT = 64;
+	private final ByteBuffer[] recent = new ByteBuffer[RECENT];
+	// System.nanoTime() when a relay received the event from upstream, indexed
+	// like recent, 0 for events which were not relayed
+	private final long[] relayReceived = new long[RECENT];
+
+	// null without TLS, the record buffers are shared by all connections
+	private SSLContext tlsContext;
+	private TlsChannel.Scratch tlsScratch;
+
+	// null if multicast is disabled
+	private DatagramChannel multicast;
+	private InetSocketAddress group;
+
+	private final int heartbeatInterval;
+	private final long heartbeatTimeoutNanos;
+	private long nextHeartbeat;
+
+	// unacknowledged events per client and the number of transmissions after
+	// which a client is considered dead
+	private static final int OUTSTANDING = 64;
+	private static final int MAX_ATTEMPTS = 4;
+	// sequence numbers of the events to send again to one client, only used by
+	// the retransmit
+	private final long[] due = new long[OUTSTANDING];
+	// 0 if the acknowledgements are not tracked
+	private final long ackTimeoutNanos;
+	private long nextRetransmit;
+
+	// names of the channels and the encoded frame which is sent after the
+	// welcome
+	private volatile String[] channelNames = { "klingel" };
+	private volatile ByteBuffer channelsFrame;
+
+	// decoded frames from the clients, only used by the loop thread
+	private final Frame received = new Frame();
+	private final WebSocket webSocket = new WebSocket();
+
+	// page which shows the events in a browser
+	private static final byte[] INDEX_PAGE = Http.resource("index.html");
+
+	// sequence number of the last published event
+	private long sequence;
+	// sequence number of the last event sent by the loop thread
+	private long lastSent;
+	// sequence number of an upstream server which the loop thread takes over, -1
+	// if there is none
+	private final AtomicLong upstreamSequence = new AtomicLong(-1);
+
+	private volatile boolean running = true;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	// the clients of a stopping server reconnect spread over a window so that
+	// the next server can accept them at its accept rate, at most this long
+	private static final int MAX_DRAIN_WINDOW = 30000;
+	// time to write the queues of the clients after the drain frame
+	private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+	private final int acceptRate;
+	private final int acceptBurst;
+	// set by drain() on another thread, the loop thread then sends the drain
+	// frames
+	private volatile boolean drainRequested;
+	// time the loop stops after it sent the drain frames, 0 until then
+	private long drainDeadline;
+
+	/**
+	 * open the listening socket
+	 *
+	 * @param address address and port to listen on
+	 * @param config  server settings
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public EventLoop(InetSocketAddress address, Config config) throws IOException {
+		this(address, null, config);
+	}
+
+	/**
+	 * use a listening socket which was opened by another process, e.g. the
+	 * socket unit of systemd which keeps it open while the server restarts
+	 *
+	 * @param server bound socket
+	 * @param config server settings
+	 * @throws IOException if the socket cannot be used
+	 */
+	public EventLoop(ServerSocketChannel server, Config config) throws IOException {
+		this(null, server, config);
+	}
+
+	private EventLoop(InetSocketAddress address, ServerSocketChannel inherited, Config config) throws IOException {
+		clients = new ClientRegistry(config.overflowPolicy);
+		queueSize = config.queueSize;
+		acceptTokens = config.acceptRate > 0 ? new TokenBucket(config.acceptRate, config.acceptBurst) : null;
+		acceptRate = config.acceptRate;
+		acceptBurst = config.acceptBurst;
+		maxConnections = config.maxConnections;
+		maxConnectionsPerAddress = config.maxConnectionsPerAddress;
+		heartbeatInterval = config.heartbeatInterval;
+		heartbeatTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.heartbeatTimeout);
+		ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.ackTimeout);
+		if (config.journal != null) {
+			journal = new Journal(config.journal);
+			// continue with the sequence numbers of the last run
+			sequence = journal.getLastSequence();
+			lastSent = sequence;
+		}
+		if (config.tlsKeystore != null) {
+			tlsContext = TlsChannel.serverContext(config.tlsKeystore, config.tlsPassword);
+			tlsScratch = new TlsChannel.Scratch(tlsContext);
+		}
+		if (config.multicast != null) {
+			group = config.multicast;
+			multicast = DatagramChannel.open(group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6
+					: StandardProtocolFamily.INET);
+			multicast.configureBlocking(false);
+			multicast.setOption(StandardSocketOptions.IP_MULTICAST_TTL, config.multicastTtl);
+		}
+		setChannels(channelNames);
+		selector = Selector.open();
+		server = inherited != null ? inherited : ServerSocketChannel.open();
+		try {
+			if (inherited == null) {
+				server.bind(address, config.backlog);
+			}
+			server.configureBlocking(false);
+			acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * encode an event once so that it can be sent to all clients without copying
+	 * it again
+	 *
+	 * @param type      event type
+	 * @param sequence  sequence number of the event
+	 * @param timestamp time of the gpio edge in microseconds since the epoch
+	 * @param channel   channel of the input
+	 * @return read only direct buffer with the frame
+	 */
+	public static ByteBuffer event(byte type, long sequence, long timestamp, int channel) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.EVENT_SIZE);
+		Protocol.writeEvent(buffer, type, sequence, timestamp, channel);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param frame event frame
+	 * @return channel of the event, 0 for events without channel from an old
+	 *         journal
+	 */
+	static int channel(ByteBuffer frame) {
+		int start = frame.position();
+		return frame.remaining() >= Protocol.EVENT_SIZE ? frame.get(start + Protocol.HEADER_SIZE + 16) & 0xff : 0;
+	}
+
+	/**
+	 * set the channel names sent to new clients
+	 *
+	 * @param names names of the channels, the index is the channel number
+	 * @throws IllegalArgumentException if there are more than
+	 *                                  {@link Protocol#MAX_CHANNELS} names
+	 */
+	public void setChannels(String[] names) {
+		if (names.length > Protocol.MAX_CHANNELS) {
+			throw new IllegalArgumentException("Maximal " + Protocol.MAX_CHANNELS + " Kanäle erlaubt");
+		}
+		ByteBuffer frame = ByteBuffer.allocateDirect(Protocol.namesSize(names));
+		Protocol.writeNames(frame, Protocol.CHANNELS, names);
+		frame.flip();
+		channelsFrame = frame.asReadOnlyBuffer();
+		channelNames = names.clone();
+	}
+
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getLocalPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the connected clients
+	 */
+	public ClientRegistry getClients() {
+		return clients;
+	}
+
+	/**
+	 * @return counters and latencies of this loop
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return number of frames dropped because the loop thread was too slow
+	 */
+	public long getIncomingDropped() {
+		return incomingDropped.sum();
+	}
+
+	/**
+	 * continue with the sequence numbers of an upstream server. The loop thread
+	 * takes it over before it sends the next events, so it may already run.
+	 *
+	 * @param sequence sequence number of the last event
+	 */
+	public synchronized void setSequence(long sequence) {
+		this.sequence = sequence;
+		upstreamSequence.set(sequence);
+		selector.wakeup();
+	}
+
+	/**
+	 * stop accepting, tell the clients to reconnect to the next server process
+	 * and stop the loop after their queues are written
+	 *
+	 * @param timeout milliseconds to wait for the loop
+	 * @return false if the loop did not stop within the timeout
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public boolean drain(long timeout) throws InterruptedException {
+		drainRequested = true;
+		selector.wakeup();
+		return stopped.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * send a new event with the next sequence number to all clients. This method
+	 * does not block.
+	 *
+	 * @param type      event type
+	 * @param timestamp time of the gpio edge in microseconds since the epoch
+	 * @param channel   channel of the input
+	 * @return sequence number of the event
+	 */
+	public synchronized long publish(byte type, long timestamp, int channel) {
+		// the lock makes sure the events are queued in the order of their sequence
+		// numbers
+		sequence++;
+		broadcast(event(type, sequence, timestamp, channel));
+		return sequence;
+	}
+
+	/**
+	 * send an event frame to all connected clients. This method does not block,
+	 * the frame is written by the loop thread.
+	 *
+	 * @param frame frame created with {@link #event(byte, long, long, int)}, it
+	 *              must not be changed afterwards
+	 * @return false if the frame was dropped because too many frames are waiting
+	 */
+	public boolean broadcast(ByteBuffer frame) {
+		if (incomingSize.incrementAndGet() > MAX_INCOMING) {
+			incomingSize.decrementAndGet();
+			incomingDropped.increment();
+			return false;
+		}
+		incoming.offer(frame);
+		selector.wakeup();
+		return true;
+	}
+
+	/**
+	 * like {@link #broadcast(ByteBuffer)} for an event which a relay received
+	 * from its upstream server. The time until the event was written to the
+	 * first client is recorded as the relay hop, both times are taken on the
+	 * clock of this machine.
+	 *
+	 * @param received {@link System#nanoTime()} when the event was read from the
+	 *                 upstream connection
+	 */
+	public boolean relay(ByteBuffer frame, long received) {
+		int slot = (int) (frame.getLong(Protocol.HEADER_SIZE) % RECENT);
+		// written before the frame is queued, the queue publishes it to the loop
+		relayReceived[slot] = received;
+		if (!broadcast(frame)) {
+			relayReceived[slot] = 0;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * run the loop until {@link #close()} is called
+	 */
+	public void run() {
+		try {
+			nextHeartbeat = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartbeatInterval);
+			nextRetransmit = System.nanoTime() + ackTimeoutNanos / 2;
+			while (running) {
+				long now = System.nanoTime();
+				long wait = nextHeartbeat - now;
+				if (ackTimeoutNanos > 0) {
+					wait = Math.min(wait, nextRetransmit - now);
+				}
+				if (acceptPaused) {
+					// wake up when we may accept again
+					wait = Math.min(wait, acceptTokens.nanosUntilToken(now));
+				}
+				if (drainDeadline != 0) {
+					wait = Math.min(wait, drainDeadline - now);
+				}
+				// select(0) would block forever
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+				if (drainRequested && drainDeadline == 0) {
+					startDrain();
+				}
+				if (drainDeadline != 0 && (clients.size() == 0 || System.nanoTime() - drainDeadline >= 0)) {
+					break;
+				}
+
+				if (acceptPaused && acceptTokens.hasToken(System.nanoTime())) {
+					acceptPaused = false;
+					acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+				}
+
+				if (upstreamSequence.get() >= 0) {
+					// the relay queues the events of the upstream server after it set
+					// the sequence number
+					lastSent = upstreamSequence.getAndSet(-1);
+				}
+				ByteBuffer frame;
+				while ((frame = incoming.poll()) != null) {
+					incomingSize.decrementAndGet();
+					fanOut(frame);
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection client = (Connection) key.attachment();
+					if (key.isReadable()) {
+						read(client);
+					}
+					if (key.isValid() && key.isWritable()) {
+						flush(client);
+					}
+				}
+
+				if (System.nanoTime() - nextHeartbeat >= 0) {
+					heartbeat();
+					nextHeartbeat += TimeUnit.MILLISECONDS.toNanos(heartbeatInterval);
+					if (journal != null) {
+						// the events of the last interval survive a power failure, the
+						// journal writes them on its own thread
+						journal.force();
+					}
+				}
+				if (ackTimeoutNanos > 0 && System.nanoTime() - nextRetransmit >= 0) {
+					retransmit();
+					// half the timeout, an event is sent again at most 1.5 timeouts after
+					// the last transmission
+					nextRetransmit = System.nanoTime() + ackTimeoutNanos / 2;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Unerwarteter IO Fehler");
+			e.printStackTrace();
+		} finally {
+			for (Iterator<Connection> it = clients.iterator(); it.hasNext();) {
+				Connection client = it.next();
+				clients.remove(client);
+				client.close();
+			}
+			if (journal != null) {
+				journal.close();
+			}
+			if (multicast != null) {
+				try {
+					multicast.close();
+				} catch (IOException e) {
+					// ignore errors
+				}
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				// ignore errors
+			}
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * stop the loop and close all connections
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * send the drain frame to all clients and close their connections once it
+	 * is written
+	 */
+	private void startDrain() {
+		// never 0, it marks that the drain has not started
+		drainDeadline = (System.nanoTime() + DRAIN_TIMEOUT) | 1;
+		// new connections are refused or, with an inherited socket, wait in the
+		// backlog for the next server process
+		acceptKey.cancel();
+		acceptPaused = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+			// ignore errors
+		}
+		// the clients which the next server cannot accept in its first burst
+		// spread their reconnects over the time it needs at its accept rate
+		int window = acceptRate > 0
+				? (int) Math.min(MAX_DRAIN_WINDOW, Math.max(0, clients.size() - acceptBurst) * 1000L / acceptRate)
+				: 0;
+		ByteBuffer drain = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + 12);
+		Protocol.writeDrain(drain, lastSent, window);
+		drain.flip();
+		Log.info("Server wird beendet, {} Clients verbinden sich neu", clients.size());
+		for (Iterator<Connection> it = clients.iterator(); it.hasNext();) {
+			Connection client = it.next();
+			try {
+				// an event stream has no frame for it, the browser reconnects on its own
+				if (client.ready && !send(client, drain)) {
+					continue;
+				}
+				close(client);
+			} catch (IOException e) {
+				metrics.writeFailures.increment();
+				disconnect(client);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		while (true) {
+			if (acceptTokens != null && !acceptTokens.hasToken(System.nanoTime())) {
+				// leave the connections in the backlog of the kernel until the next token,
+				// the clients connected already are served in the meantime
+				acceptPaused = true;
+				acceptKey.interestOps(0);
+				metrics.acceptThrottled.increment();
+				return;
+			}
+			SocketChannel channel = server.accept();
+			if (channel == null) {
+				return;
+			}
+			if (acceptTokens != null) {
+				acceptTokens.take();
+			}
+			try {
+				if (!admit(channel)) {
+					// close without log message, a storm would flood the log
+					channel.close();
+					continue;
+				}
+				channel.configureBlocking(false);
+				// make sure the tcp connection stays alive because we do not send for a long
+				// time
+				channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				Connection client = new Connection(channel, queueSize);
+				client.key = channel.register(selector, SelectionKey.OP_READ, client);
+				if (tlsContext != null) {
+					SSLEngine engine = tlsContext.createSSLEngine();
+					engine.setUseClientMode(false);
+					client.tls = new TlsChannel(channel, engine, tlsScratch);
+				}
+				clients.add(client);
+				metrics.accepts.increment();
+				Log.info("Neuer Client verbunden von {}, {} Clients verbunden", client.getAddress(), clients.size());
+			} catch (IOException e) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * @return false if the connection exceeds a connection limit
+	 */
+	private boolean admit(SocketChannel channel) throws IOException {
+		if (maxConnections > 0 && clients.size() >= maxConnections) {
+			metrics.rejectedMaxConnections.increment();
+			return false;
+		}
+		String address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+		if (maxConnectionsPerAddress > 0 && clients.count(address) >= maxConnectionsPerAddress) {
+			metrics.rejectedPerAddress.increment();
+			return false;
+		}
+		return true;
+	}
+
+	private void read(Connection client) {
+		try {
+			do {
+				if (!receive(client)) {
+					return;
+				}
+			} while (client.hasBufferedInput());
+		} catch (SSLException e) {
+			if (!client.tls.isHandshakeComplete()) {
+				metrics.tlsHandshakeFailures.increment();
+				Log.info("TLS Handshake mit Client {} fehlgeschlagen", client.getAddress() + " (" + e.getMessage() + ")");
+			}
+			disconnect(client);
+		} catch (IOException e) {
+			disconnect(client);
+		} catch (RuntimeException e) {
+			// a bug triggered by one client must not stop the loop for all others
+			Log.warn("Unerwarteter Fehler bei Client {}", client.getAddress() + " (" + e + ")");
+			disconnect(client);
+		}
+	}
+
+	/**
+	 * read and handle the received data once
+	 *
+	 * @return false if the connection was closed
+	 */
+	private boolean receive(Connection client) throws IOException {
+		ByteBuffer input = client.input;
+		int n = client.read(input);
+		if (n < 0) {
+			disconnect(client);
+			return false;
+		}
+		client.lastReceived = System.nanoTime();
+		if (client.tls != null && !client.handshakeCounted && client.tls.isHandshakeComplete()) {
+			client.handshakeCounted = true;
+			(client.tls.isResumed() ? metrics.tlsResumedHandshake : metrics.tlsFullHandshake)
+					.record(client.tls.getHandshakeNanos() / 1000);
+		}
+		input.flip();
+		if (client.transport == Connection.TCP && !client.ready && Http.isRequest(input)) {
+			client.transport = Connection.HTTP;
+		}
+		switch (client.transport) {
+			case Connection.HTTP:
+				Http.Request request = Http.parse(input);
+				if (request != null) {
+					handle(client, request);
+				}
+				break;
+			case Connection.WEBSOCKET:
+				if (client.closing) {
+					// only the close message is left to write
+					input.position(input.limit());
+					break;
+				}
+				try {
+					while (client.channel.isOpen() && webSocket.read(input)) {
+						handleWebSocket(client);
+					}
+				} catch (WebSocket.CloseException e) {
+					Log.info("WebSocket Verbindung zu Client {} wird geschlossen",
+							client.getAddress() + " (" + e.getMessage() + ")");
+					input.position(input.limit());
+					if (sendEncoded(client, WebSocket.close(e.getStatus()))) {
+						client.ready = false;
+						close(client);
+					}
+				}
+				break;
+			case Connection.SSE:
+				// the browser sends nothing after the request
+				input.position(input.limit());
+				break;
+			default:
+				while (client.channel.isOpen() && received.read(input)) {
+					handle(client);
+				}
+				break;
+		}
+		if (!client.channel.isOpen()) {
+			return false;
+		}
+		input.compact();
+		if (!input.hasRemaining()) {
+			client.growInput();
+		}
+		return true;
+	}
+
+	private void handle(Connection client) throws IOException {
+		switch (received.getType()) {
+			case Protocol.HELLO:
+				if (received.getVersion() < Protocol.MIN_VERSION) {
+					throw new ProtocolException("Protokoll Version " + received.getVersion() + " wird nicht unterstützt");
+				}
+				client.version = (byte) Math.min(received.getVersion(), Protocol.VERSION);
+				boolean useMulticast = group != null && (received.getFlags() & Protocol.FLAG_MULTICAST) != 0;
+				if (ackTimeoutNanos > 0 && (received.getFlags() & Protocol.FLAG_ACK) != 0 && client.outstanding == null) {
+					// before the replay, the replayed events are tracked as well
+					client.outstanding = new Outstanding(OUTSTANDING);
+				}
+				ByteBuffer welcome = ByteBuffer.allocate(Protocol.HEADER_SIZE + 12 + 18);
+				Protocol.writeWelcome(welcome, client.version, lastSent, heartbeatInterval, useMulticast ? group : null);
+				welcome.flip();
+				if (!send(client, welcome) || !send(client, channelsFrame)) {
+					return;
+				}
+				if (received.getSequence() >= 0) {
+					replay(client, received.getSequence());
+				}
+				client.ready = true;
+				break;
+			case Protocol.JOINED:
+				// from now on the events reach the client via multicast
+				client.multicast = group != null;
+				break;
+			case Protocol.SUBSCRIBE:
+				clients.subscribe(client, subscription(received.getNames()));
+				break;
+			case Protocol.REPAIR:
+				replay(client, received.getSequence());
+				break;
+			case Protocol.ACK:
+				acknowledge(client, received.getSequence());
+				break;
+			case Protocol.PONG:
+				// the time of the last receive was already updated
+				break;
+			default:
+				// ignore unknown frames from newer clients
+				break;
+		}
+	}
+
+	/**
+	 * @return bit mask of the named channels, all channels if no name is given
+	 */
+	private long subscription(String[] names) {
+		if (names.length == 0) {
+			return ~0L;
+		}
+		String[] channels = channelNames;
+		long mask = 0;
+		for (String name : names) {
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i].equals(name)) {
+					mask |= 1L << i;
+				}
+			}
+		}
+		// unknown names are ignored, the client may know channels of other servers
+		return mask;
+	}
+
+	/**
+	 * record the round trip of an acknowledged event
+	 */
+	private void acknowledge(Connection client, long sequence) {
+		Outstanding outstanding = client.outstanding;
+		int slot = outstanding != null ? outstanding.find(sequence) : -1;
+		if (slot < 0) {
+			// e.g. the acknowledgement of a duplicate
+			return;
+		}
+		metrics.ackDelivery.record(Timestamps.nowMicros() - outstanding.getEdge(slot));
+		// the round trip of a retransmitted event is ambiguous, like TCP only use
+		// the events which were sent once
+		if (outstanding.getAttempts(slot) == 1) {
+			long roundTrip = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - outstanding.getFirstSent(slot));
+			metrics.ackRoundTrip.record(roundTrip);
+			long smoothed = client.roundTrip;
+			client.roundTrip = smoothed == 0 ? roundTrip : smoothed + (roundTrip - smoothed) / 8;
+			client.maxRoundTrip = Math.max(client.maxRoundTrip, roundTrip);
+		}
+		outstanding.remove(slot);
+	}
+
+	/**
+	 * remember an event sent to a client which acknowledges the events
+	 */
+	private void track(Connection client, ByteBuffer frame) {
+		Outstanding outstanding = client.outstanding;
+		if (outstanding == null) {
+			return;
+		}
+		int start = frame.position();
+		if (!outstanding.add(frame.getLong(start + Protocol.HEADER_SIZE),
+				frame.getLong(start + Protocol.HEADER_SIZE + 8), System.nanoTime())) {
+			metrics.ackOverflows.increment();
+		}
+	}
+
+	/**
+	 * send the events again which were not acknowledged within the timeout, the
+	 * oldest first, and close the connections which never acknowledge them
+	 */
+	private void retransmit() {
+		long now = System.nanoTime();
+		for (Iterator<Connection> it = clients.iterator(); it.hasNext();) {
+			Connection client = it.next();
+			Outstanding outstanding = client.outstanding;
+			// a client with queued frames is slow but the events are not lost, the
+			// overflow policy takes care of it
+			if (outstanding == null || outstanding.isEmpty() || !client.isIdle()) {
+				continue;
+			}
+			// the slots are not in the order of the sequence numbers
+			int count = 0;
+			boolean dead = false;
+			for (int slot = 0; slot < outstanding.capacity(); slot++) {
+				long sequence = outstanding.getSequence(slot);
+				if (sequence == 0 || now - outstanding.getLastSent(slot) < ackTimeoutNanos) {
+					continue;
+				}
+				if (outstanding.getAttempts(slot) >= MAX_ATTEMPTS) {
+					Log.warn("Client {} bestätigt das Ereignis nicht: {}", client.getAddress(), sequence);
+					dead = true;
+					break;
+				}
+				due[count++] = sequence;
+			}
+			if (dead) {
+				metrics.ackTimeouts.increment();
+				clients.remove(client);
+				client.close();
+				continue;
+			}
+			if (count > 0) {
+				Arrays.sort(due, 0, count);
+				retransmit(client, count, now);
+			}
+		}
+	}
+
+	/**
+	 * send the first events of {@link #due} again in their order. The events
+	 * which are no longer in memory are read in a single pass over the journal.
+	 */
+	private void retransmit(Connection client, int count, long now) {
+		int next = 0;
+		if (journal != null && recent(due[0]) == null) {
+			int[] position = { 0 };
+			boolean[] stopped = { false };
+			journal.replay(due[0] - 1, f -> {
+				long sequence = f.getLong(f.position() + Protocol.HEADER_SIZE);
+				while (position[0] < count && due[position[0]] < sequence) {
+					// not in the journal any more, the client repairs the gap
+					forget(client, due[position[0]++]);
+				}
+				if (position[0] == count || recent(due[position[0]]) != null) {
+					// the newer events are still in memory
+					return false;
+				}
+				if (due[position[0]] == sequence) {
+					if (!retransmit(client, copy(f), sequence, now)) {
+						stopped[0] = true;
+						return false;
+					}
+					position[0]++;
+				}
+				return true;
+			});
+			if (stopped[0]) {
+				return;
+			}
+			next = position[0];
+		}
+		for (; next < count; next++) {
+			ByteBuffer frame = recent(due[next]);
+			if (frame == null) {
+				forget(client, due[next]);
+			} else if (!retransmit(client, frame, due[next], now)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return copy of a frame of the journal, a full socket queues the frame and
+	 *         the segment may be deleted before it is written
+	 */
+	private static ByteBuffer copy(ByteBuffer frame) {
+		ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+		copy.put(frame.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * @return false if the queue of the client is full or the client was
+	 *         disconnected
+	 */
+	private boolean retransmit(Connection client, ByteBuffer frame, long sequence, long now) {
+		try {
+			if (!offer(client, frame)) {
+				return false;
+			}
+		} catch (IOException e) {
+			metrics.writeFailures.increment();
+			disconnect(client);
+			return false;
+		}
+		client.outstanding.add(sequence, 0, now);
+		client.retransmits++;
+		metrics.retransmits.increment();
+		return true;
+	}
+
+	/**
+	 * stop tracking an event which can no longer be sent again
+	 */
+	private static void forget(Connection client, long sequence) {
+		int slot = client.outstanding.find(sequence);
+		if (slot >= 0) {
+			client.outstanding.remove(slot);
+		}
+	}
+
+	/**
+	 * @return the frame of the event if it is still in memory, null otherwise
+	 */
+	private ByteBuffer recent(long sequence) {
+		ByteBuffer frame = recent[(int) (sequence % RECENT)];
+		return frame != null && frame.getLong(Protocol.HEADER_SIZE) == sequence ? frame : null;
+	}
+
+	/**
+	 * answer the request of a browser, only /events keeps the connection open
+	 */
+	private void handle(Connection client, Http.Request request) throws IOException {
+		if (request.path.equals("/") || request.path.equals("/index.html")) {
+			client.sendControl(Http.response("200 OK", "text/html; charset=utf-8", INDEX_PAGE));
+			close(client);
+			return;
+		}
+		if (!request.path.equals("/events")) {
+			client.sendControl(Http.response("404 Not Found", "text/plain; charset=utf-8",
+					"Nicht gefunden\n".getBytes(StandardCharsets.UTF_8)));
+			close(client);
+			return;
+		}
+		if (request.isWebSocket() && !WebSocket.VERSION.equals(request.headers.get("sec-websocket-version"))) {
+			client.sendControl(WebSocket.upgradeRequired());
+			close(client);
+			return;
+		}
+		String channels = request.query.get("channels");
+		if (channels != null) {
+			clients.subscribe(client, subscription(channels.split(",")));
+		}
+		// the browser sends the id of the last event when an event stream
+		// reconnects
+		String after = request.headers.getOrDefault("last-event-id", request.query.get("after"));
+		if (request.isWebSocket()) {
+			client.sendControl(WebSocket.upgrade(request.headers.get("sec-websocket-key")));
+			client.transport = Connection.WEBSOCKET;
+			// the same handshake as a raw client without the hello
+			client.version = Protocol.VERSION;
+			ByteBuffer welcome = ByteBuffer.allocate(Protocol.HEADER_SIZE + 12 + 18);
+			Protocol.writeWelcome(welcome, client.version, lastSent, heartbeatInterval, null);
+			welcome.flip();
+			if (!send(client, welcome) || !send(client, channelsFrame)) {
+				return;
+			}
+		} else {
+			client.sendControl(Http.eventStream());
+			client.transport = Connection.SSE;
+		}
+		if (after != null) {
+			try {
+				replay(client, Long.parseLong(after.trim()));
+			} catch (NumberFormatException e) {
+				// send only the new events
+			}
+		}
+		client.ready = true;
+	}
+
+	/**
+	 * handle a message of a WebSocket client, binary messages contain protocol
+	 * frames
+	 */
+	private void handleWebSocket(Connection client) throws IOException {
+		switch (webSocket.getOpcode()) {
+			case WebSocket.BINARY:
+				ByteBuffer payload = webSocket.getPayload();
+				while (received.read(payload)) {
+					handle(client);
+				}
+				break;
+			case WebSocket.PING:
+				sendEncoded(client, WebSocket.encode(WebSocket.PONG, webSocket.getPayload()));
+				break;
+			case WebSocket.CLOSE:
+				// echo the close, the browser reports an error otherwise
+				if (sendEncoded(client, WebSocket.encode(WebSocket.CLOSE, webSocket.getPayload()))) {
+					client.ready = false;
+					close(client);
+				}
+				break;
+			default:
+				// pongs only update the time of the last receive
+				break;
+		}
+	}
+
+	/**
+	 * encode the control frame for the transport of the client and send it, it
+	 * is never dropped by the overflow policy
+	 *
+	 * @return false if the queue of the client is full of control frames, the
+	 *         client was disconnected then
+	 */
+	private boolean send(Connection client, ByteBuffer frame) throws IOException {
+		ByteBuffer encoded = encode(client, frame);
+		return encoded == null || sendEncoded(client, encoded);
+	}
+
+	/**
+	 * send a control frame which is already encoded for the transport
+	 *
+	 * @return false if the client was disconnected
+	 */
+	private boolean sendEncoded(Connection client, ByteBuffer encoded) throws IOException {
+		if (clients.sendControl(client, encoded)) {
+			return true;
+		}
+		disconnect(client);
+		return false;
+	}
+
+	/**
+	 * encode the event for the transport of the client and send it if there is
+	 * room in its queue, e.g. during a replay
+	 *
+	 * @return false if the queue is full
+	 */
+	private boolean offer(Connection client, ByteBuffer frame) throws IOException {
+		ByteBuffer encoded = encode(client, frame);
+		return encoded == null || client.send(encoded);
+	}
+
+	/**
+	 * @return the frame for the transport of the client, null if the transport
+	 *         has no representation for it
+	 */
+	private ByteBuffer encode(Connection client, ByteBuffer frame) {
+		switch (client.transport) {
+			case Connection.WEBSOCKET:
+				return WebSocket.wrap(frame);
+			case Connection.SSE:
+				return Http.event(frame, channelNames);
+			default:
+				return frame;
+		}
+	}
+
+	/**
+	 * close the connection after the queued frames are written
+	 */
+	private void close(Connection client) {
+		if (client.isIdle()) {
+			disconnect(client);
+		} else {
+			client.closing = true;
+		}
+	}
+
+	private void flush(Connection client) {
+		try {
+			client.flush();
+			if (client.closing && client.isIdle()) {
+				disconnect(client);
+			}
+		} catch (IOException e) {
+			metrics.writeFailures.increment();
+			disconnect(client);
+		}
+	}
+
+	/**
+	 * send the missed events to the client, stop if its queue is full
+	 */
+	private void replay(Connection client, long after) {
+		Journal.Replay sender = f -> {
+			// a multicast client gets all channels and filters them itself
+			int channel = channel(f);
+			if (channel >= Protocol.MAX_CHANNELS || !client.multicast && (client.channels & 1L << channel) == 0) {
+				return true;
+			}
+			try {
+				if (!offer(client, f)) {
+					return false;
+				}
+				track(client, f);
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		};
+		if (journal != null) {
+			journal.replay(after, f -> sender.frame(copy(f)));
+			return;
+		}
+		for (long sequence = Math.max(after + 1, Math.max(1, lastSent - RECENT + 1)); sequence <= lastSent; sequence++) {
+			ByteBuffer frame = recent(sequence);
+			if (frame != null && !sender.frame(frame)) {
+				return;
+			}
+		}
+	}
+
+	private void fanOut(ByteBuffer frame) {
+		long sequence = frame.getLong(Protocol.HEADER_SIZE);
+		int channel = channel(frame);
+		if (channel >= channelNames.length) {
+			// only a relay can get such an event from a broken upstream server
+			Log.warn("Ereignis {} mit unbekanntem Kanal {} verworfen", String.valueOf(sequence), channel);
+			return;
+		}
+		// a relay forwards repaired older events after newer ones
+		lastSent = Math.max(lastSent, sequence);
+		long edge = frame.getLong(Protocol.HEADER_SIZE + 8);
+		boolean first = true;
+		// browser variants of the frame, encoded at most once per event
+		ByteBuffer webSocketFrame = null;
+		ByteBuffer sseFrame = null;
+		metrics.events.increment();
+		int slot = (int) (sequence % RECENT);
+		recent[slot] = frame;
+		long relayed = relayReceived[slot];
+		relayReceived[slot] = 0;
+		if (multicast != null) {
+			// one datagram reaches all multicast clients
+			int start = frame.position();
+			try {
+				multicast.send(frame, group);
+				firstWrite(edge, relayed);
+				first = false;
+			} catch (IOException e) {
+				Log.warn("Multicast konnte nicht gesendet werden: {}", e.getMessage());
+			}
+			frame.position(start);
+		}
+		// only the subscribers of the channel are touched, removing a client inside
+		// the loop is allowed
+		for (Iterator<Connection> it = clients.subscribers(channel); it.hasNext();) {
+			Connection client = it.next();
+			if (!client.ready || client.multicast) {
+				// the handshake is not finished yet or the client got the datagram
+				continue;
+			}
+			ByteBuffer encoded = frame;
+			if (client.transport == Connection.WEBSOCKET) {
+				if (webSocketFrame == null) {
+					webSocketFrame = WebSocket.wrap(frame);
+				}
+				encoded = webSocketFrame;
+			} else if (client.transport == Connection.SSE) {
+				if (sseFrame == null) {
+					sseFrame = Http.event(frame, channelNames);
+				}
+				encoded = sseFrame;
+			}
+			boolean ok;
+			try {
+				ok = clients.send(client, encoded);
+			} catch (IOException e) {
+				metrics.writeFailures.increment();
+				ok = false;
+			}
+			if (ok) {
+				track(client, frame);
+			}
+			if (ok && first) {
+				firstWrite(edge, relayed);
+				first = false;
+			}
+			if (!ok) {
+				disconnect(client);
+			}
+		}
+		if (!first) {
+			metrics.lastWrite.record(Timestamps.nowMicros() - edge);
+		}
+		if (journal != null) {
+			// only after the clients got the event, the journal must not delay them
+			try {
+				journal.append(frame);
+			} catch (IOException e) {
+				Log.error("Journal konnte nicht geschrieben werden: {}", e.getMessage());
+			}
+		}
+	}
+
+	private void firstWrite(long edge, long relayed) {
+		metrics.firstWrite.record(Timestamps.nowMicros() - edge);
+		if (relayed != 0) {
+			metrics.relayHop.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - relayed));
+		}
+	}
+
+	/**
+	 * send a ping to all idle clients and close the connections which did not
+	 * answer within the timeout
+	 */
+	private void heartbeat() {
+		ByteBuffer ping = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + 8);
+		Protocol.writePing(ping, lastSent);
+		ping.flip();
+		long now = System.nanoTime();
+		for (Iterator<Connection> it = clients.iterator(); it.hasNext();) {
+			Connection client = it.next();
+			// an event stream is one-way, a dead browser is only noticed by a failed
+			// write
+			if (client.transport != Connection.SSE && now - client.lastReceived > heartbeatTimeoutNanos) {
+				Log.warn("Client {} antwortet nicht", client.getAddress());
+				metrics.heartbeatTimeouts.increment();
+				clients.remove(client);
+				client.close();
+				continue;
+			}
+			// a client which still has queued frames gets no ping, the ping must not
+			// replace an event because of the overflow policy
+			if (!client.ready || !client.isIdle()) {
+				continue;
+			}
+			try {
+				switch (client.transport) {
+					case Connection.WEBSOCKET:
+						// browsers answer a ping of the WebSocket protocol automatically
+						client.sendControl(WebSocket.PING_FRAME);
+						break;
+					case Connection.SSE:
+						client.sendControl(Http.SSE_PING);
+						break;
+					default:
+						client.sendControl(ping);
+						break;
+				}
+			} catch (IOException e) {
+				metrics.writeFailures.increment();
+				disconnect(client);
+			}
+		}
+	}
+
+	private void disconnect(Connection client) {
+		clients.remove(client);
+		client.close();
+		Log.info("Verbindung zu Client {} getrennt, {} Clients verbunden", client.getAddress(), clients.size());
+	}
+}
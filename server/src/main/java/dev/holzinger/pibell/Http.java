@@ -0,0 +1,196 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import dev.holzinger.pibell.common.Protocol;
+
+/**
+ * Minimal HTTP/1.1 support for browsers on the server port. A connection
+ * which starts with "GET " is an HTTP request, a raw client always starts with
+ * a short {@link Protocol#HELLO} whose first byte is zero. The events are sent
+ * over WebSocket (see {@link WebSocket}) or as Server-Sent Events.
+ */
+final class Http {
+
+	/**
+	 * maximum length of the request line and the headers
+	 */
+	static final int MAX_REQUEST = 8192;
+
+	/**
+	 * A parsed request, header names are lower case.
+	 */
+	static final class Request {
+		String path;
+		final Map<String, String> query = new HashMap<String, String>();
+		final Map<String, String> headers = new HashMap<String, String>();
+
+		boolean isWebSocket() {
+			return "websocket".equalsIgnoreCase(headers.get("upgrade")) && headers.containsKey("sec-websocket-key");
+		}
+	}
+
+	// keeps the browser waiting for a second before it reconnects
+	private static final byte[] SSE_HEADER = ("HTTP/1.1 200 OK\r\n" + "Content-Type: text/event-stream\r\n"
+			+ "Cache-Control: no-cache\r\n" + "Access-Control-Allow-Origin: *\r\n" + "\r\n" + "retry: 1000\n\n")
+					.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * comment which keeps an idle event stream and its proxies alive
+	 */
+	static final ByteBuffer SSE_PING = ByteBuffer
+			.wrap(":ping\n\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+	private Http() {
+	}
+
+	/**
+	 * @param input buffer in read mode
+	 * @return true if the buffer starts with an HTTP GET request
+	 */
+	static boolean isRequest(ByteBuffer input) {
+		int start = input.position();
+		return input.remaining() >= 4 && input.get(start) == 'G' && input.get(start + 1) == 'E'
+				&& input.get(start + 2) == 'T' && input.get(start + 3) == ' ';
+	}
+
+	/**
+	 * parse the request if the headers are complete
+	 *
+	 * @param input buffer in read mode, the position is moved behind the headers
+	 * @return the request or null if more data is needed
+	 * @throws ProtocolException if the request is too long or invalid
+	 */
+	static Request parse(ByteBuffer input) throws ProtocolException {
+		int start = input.position();
+		int end = -1;
+		for (int i = start; i + 3 < input.limit(); i++) {
+			if (input.get(i) == '\r' && input.get(i + 1) == '\n' && input.get(i + 2) == '\r'
+					&& input.get(i + 3) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			if (input.remaining() >= MAX_REQUEST) {
+				throw new ProtocolException("HTTP Anfrage zu lang");
+			}
+			return null;
+		}
+		byte[] bytes = new byte[end - start];
+		input.get(bytes);
+		input.position(end + 4);
+
+		String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) {
+			throw new ProtocolException("Ungültige HTTP Anfrage");
+		}
+		Request request = new Request();
+		String target = requestLine[1];
+		int query = target.indexOf('?');
+		request.path = query < 0 ? target : target.substring(0, query);
+		if (query >= 0) {
+			for (String parameter : target.substring(query + 1).split("&")) {
+				int split = parameter.indexOf('=');
+				if (split > 0) {
+					request.query.put(decode(parameter.substring(0, split)), decode(parameter.substring(split + 1)));
+				}
+			}
+		}
+		for (int i = 1; i < lines.length; i++) {
+			int split = lines[i].indexOf(':');
+			if (split > 0) {
+				request.headers.put(lines[i].substring(0, split).trim().toLowerCase(), lines[i].substring(split + 1).trim());
+			}
+		}
+		return request;
+	}
+
+	private static String decode(String value) throws ProtocolException {
+		try {
+			return URLDecoder.decode(value, StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new ProtocolException("Ungültige Kodierung in der HTTP Anfrage: " + value);
+		}
+	}
+
+	/**
+	 * @param name name of a resource next to this class
+	 * @return content of the resource, empty if it is missing
+	 */
+	static byte[] resource(String name) {
+		try (InputStream in = Http.class.getResourceAsStream(name)) {
+			return in == null ? new byte[0] : in.readAllBytes();
+		} catch (IOException e) {
+			return new byte[0];
+		}
+	}
+
+	/**
+	 * @return a complete response, the connection is closed after it
+	 */
+	static ByteBuffer response(String status, String contentType, byte[] body) {
+		byte[] header = ("HTTP/1.1 " + status + "\r\n" + "Content-Type: " + contentType + "\r\n" + "Content-Length: "
+				+ body.length + "\r\n" + "Connection: close\r\n" + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocate(header.length + body.length);
+		buffer.put(header).put(body).flip();
+		return buffer;
+	}
+
+	/**
+	 * @return the header which starts an event stream
+	 */
+	static ByteBuffer eventStream() {
+		return ByteBuffer.wrap(SSE_HEADER).asReadOnlyBuffer();
+	}
+
+	/**
+	 * encode an event frame as Server-Sent Event, the id is the sequence number
+	 * so the browser sends it as Last-Event-ID when it reconnects
+	 *
+	 * @param frame    encoded event
+	 * @param channels channel names of the server
+	 * @return read only buffer with the event, null if the frame is no event
+	 */
+	static ByteBuffer event(ByteBuffer frame, String[] channels) {
+		int start = frame.position();
+		byte type = frame.get(start + 3);
+		if (!Protocol.isEvent(type)) {
+			return null;
+		}
+		long sequence = frame.getLong(start + Protocol.HEADER_SIZE);
+		long timestamp = frame.getLong(start + Protocol.HEADER_SIZE + 8);
+		int channel = EventLoop.channel(frame);
+		String name = channel < channels.length ? channels[channel] : String.valueOf(channel);
+		String event = "id: " + sequence + "\n" + "event: " + (type == Protocol.RING ? "ring" : "event") + "\n"
+				+ "data: {\"sequence\":" + sequence + ",\"type\":" + type + ",\"timestamp\":" + timestamp
+				+ ",\"channel\":\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}\n\n";
+		byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer.asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Source of the raw edges of the bell input. The real source is the gpio pin
+ * of the Raspberry Pi, the simulated sources allow running and load testing
+ * the server on any machine.
+ */
+public interface InputSource extends Closeable {
+
+	/**
+	 * Receives the raw edges of an input source.
+	 */
+	public interface EdgeListener {
+		/**
+		 * @param high  new level of the input
+		 * @param nanos {@link System#nanoTime()} of the edge
+		 */
+		public void edge(boolean high, long nanos);
+	}
+
+	/**
+	 * start delivering edges to the listener, this method does not block
+	 *
+	 * @param listener receives the edges, it may be called from any thread
+	 * @throws IOException if the input cannot be opened
+	 */
+	public void start(EdgeListener listener) throws IOException;
+
+	/**
+	 * stop delivering edges and release the input
+	 */
+	public void close();
+
+	/**
+	 * create the input source described by the command line option
+	 *
+	 * @param spec "gpio", "gpiod:[CHIP:]LINE", "edges:FILE", "replay:FILE" or
+	 *             "storm:RATE"
+	 * @param pin  wiringPi pin number for the gpio source
+	 * @return the input source
+	 * @throws IllegalArgumentException if the spec is invalid
+	 */
+	public static InputSource create(String spec, int pin) {
+		if (spec.equals("gpio")) {
+			return new Pi4jInputSource(pin);
+		}
+		if (spec.startsWith("gpiod:")) {
+			String[] parts = spec.substring("gpiod:".length()).split(":");
+			try {
+				if (parts.length == 1) {
+					return EdgeStreamInputSource.gpiomon("gpiochip0", Integer.parseInt(parts[0]));
+				}
+				if (parts.length == 2) {
+					return EdgeStreamInputSource.gpiomon(parts[0], Integer.parseInt(parts[1]));
+				}
+			} catch (NumberFormatException e) {
+				// handled below
+			}
+			throw new IllegalArgumentException("Ungültige gpio Leitung: " + spec);
+		}
+		if (spec.startsWith("edges:")) {
+			return EdgeStreamInputSource.file(Paths.get(spec.substring("edges:".length())));
+		}
+		if (spec.startsWith("replay:")) {
+			return SimulatedInputSource.replay(Paths.get(spec.substring("replay:".length())));
+		}
+		if (spec.startsWith("storm:")) {
+			String rate = spec.substring("storm:".length());
+			try {
+				double perSecond = Double.parseDouble(rate);
+				if (perSecond > 0) {
+					return SimulatedInputSource.storm(perSecond);
+				}
+			} catch (NumberFormatException e) {
+				// handled below
+			}
+			throw new IllegalArgumentException("Ungültige Rate: " + rate);
+		}
+		throw new IllegalArgumentException("Unbekannte Eingabe: " + spec);
+	}
+}
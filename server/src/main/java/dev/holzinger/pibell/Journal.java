@@ -0,0 +1,346 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import dev.holzinger.pibell.common.Protocol;
+
+/**
+ * Append-only journal of all events so that clients can receive the events
+ * they missed while they were disconnected.
+ *
+ * The events are stored as the encoded frames in memory mapped segment files
+ * of a fixed size. A segment is named after the sequence number of its first
+ * event and the end of the written data is marked by a zero length, so after a
+ * restart only the last segment has to be scanned. Only the newest
+ * {@link #SEGMENTS} segments are kept. The pages are written to the disk by
+ * {@link #force()}, which the event loop calls with the heartbeat, and when a
+ * segment is full.
+ *
+ * The journal is not thread-safe, it is only used by the event loop thread
+ * after the live event was written to all clients. The disk I/O which can take
+ * milliseconds on an SD card runs on a separate writer thread: forcing the
+ * pages, deleting old segments and creating the file of the next segment,
+ * which only has to be renamed when the current one is full.
+ */
+public class Journal implements Closeable {
+
+	// size of a single segment file
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+	// number of segments which are kept
+	private static final int SEGMENTS = 4;
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".log";
+	// file of the next segment, it does not match the segment names
+	private static final String SPARE = PREFIX + "next.tmp";
+
+	/**
+	 * Receives the frames during a replay.
+	 */
+	public interface Replay {
+		/**
+		 * @param frame read only view of the stored frame, it is only valid during
+		 *              the call, a copy is needed to keep it
+		 * @return false to stop the replay
+		 */
+		public boolean frame(ByteBuffer frame);
+	}
+
+	private static class Segment {
+		final Path path;
+		final long first;
+		final MappedByteBuffer buffer;
+
+		Segment(Path path, long first, MappedByteBuffer buffer) {
+			this.path = path;
+			this.first = first;
+			this.buffer = buffer;
+		}
+	}
+
+	private final Path directory;
+	// oldest segment first, the last one is written
+	private final List<Segment> segments = new ArrayList<Segment>();
+	// old segments which are deleted when the running replay finished
+	private final List<Segment> retired = new ArrayList<Segment>();
+	private int replaying;
+	// events were appended since the last force
+	private boolean dirty;
+	private long lastSequence;
+	// does all disk I/O except the writes into the mapped pages
+	private final ExecutorService writer;
+	// mapped file of the next segment, null while the writer creates it
+	private volatile MappedByteBuffer spare;
+
+	/**
+	 * open the journal and recover the existing segments
+	 *
+	 * @param directory directory of the segment files, it is created if needed
+	 * @throws IOException if the journal cannot be opened
+	 */
+	public Journal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+
+		List<Long> firsts = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					firsts.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// not one of our files
+				}
+			}
+		}
+		Collections.sort(firsts);
+		for (long first : firsts) {
+			segments.add(map(first));
+		}
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		writer.execute(this::prepareSpare);
+		if (segments.isEmpty()) {
+			return;
+		}
+
+		// find the end of the last segment, the frames before it are complete
+		Segment last = segments.get(segments.size() - 1);
+		ByteBuffer buffer = last.buffer;
+		buffer.position(0);
+		lastSequence = last.first - 1;
+		while (hasFrame(buffer)) {
+			lastSequence = buffer.getLong(buffer.position() + Protocol.HEADER_SIZE);
+			buffer.position(buffer.position() + 2 + (buffer.getShort(buffer.position()) & 0xffff));
+		}
+	}
+
+	/**
+	 * @return sequence number of the newest stored event, 0 if there is none
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * store an event frame
+	 *
+	 * @param frame encoded event, its position is not changed
+	 * @throws IOException if a new segment cannot be created
+	 */
+	public void append(ByteBuffer frame) throws IOException {
+		long sequence = frame.getLong(frame.position() + Protocol.HEADER_SIZE);
+		// keep two bytes for the zero length end marker
+		if (segments.isEmpty() || current().remaining() < frame.remaining() + 2) {
+			rotate(sequence);
+		}
+		current().put(frame.duplicate());
+		dirty = true;
+		// a relay may store a repaired older event after a newer one
+		lastSequence = Math.max(lastSequence, sequence);
+	}
+
+	/**
+	 * pass all stored events after the given sequence number to the replay, the
+	 * oldest event first
+	 *
+	 * @param after  sequence number of the last event the client has seen
+	 * @param replay receives the events
+	 */
+	public void replay(long after, Replay replay) {
+		if (after >= lastSequence) {
+			return;
+		}
+		// skip the segments which only contain older events
+		int start = 0;
+		for (int i = 1; i < segments.size(); i++) {
+			if (segments.get(i).first <= after + 1) {
+				start = i;
+			}
+		}
+		// a replay which appends must not delete the segment it reads
+		List<Segment> reading = new ArrayList<Segment>(segments.subList(start, segments.size()));
+		replaying++;
+		try {
+			for (Segment segment : reading) {
+				ByteBuffer buffer = segment.buffer.asReadOnlyBuffer();
+				buffer.position(0);
+				while (hasFrame(buffer)) {
+					int next = buffer.position() + 2 + (buffer.getShort(buffer.position()) & 0xffff);
+					if (buffer.getLong(buffer.position() + Protocol.HEADER_SIZE) > after) {
+						ByteBuffer frame = buffer.duplicate();
+						frame.limit(next);
+						if (!replay.frame(frame)) {
+							return;
+						}
+					}
+					buffer.position(next);
+				}
+			}
+		} finally {
+			replaying--;
+			if (replaying == 0) {
+				deleteRetired();
+			}
+		}
+	}
+
+	/**
+	 * write the appended events to the disk in the background, so that they
+	 * survive a crash of the machine. It takes milliseconds on an SD card, so it
+	 * is not done for every event.
+	 */
+	public void force() {
+		if (dirty) {
+			writer.execute(force(current()));
+			dirty = false;
+		}
+	}
+
+	private static Runnable force(MappedByteBuffer buffer) {
+		return () -> {
+			try {
+				buffer.force();
+			} catch (RuntimeException e) {
+				Log.warn("Journal konnte nicht geschrieben werden: {}", e.toString());
+			}
+		};
+	}
+
+	/**
+	 * @return true if a complete event frame starts at the position of the buffer
+	 */
+	private static boolean hasFrame(ByteBuffer buffer) {
+		if (buffer.remaining() < Protocol.MIN_EVENT_SIZE) {
+			return false;
+		}
+		int length = buffer.getShort(buffer.position()) & 0xffff;
+		// a zero length marks the end, a frame which is not an event can only be
+		// the result of an interrupted write
+		return length >= Protocol.MIN_EVENT_SIZE - 2 && buffer.remaining() >= 2 + length
+				&& Protocol.isEvent(buffer.get(buffer.position() + 3));
+	}
+
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// the next server process continues with the sequence numbers, even if the
+		// machine goes down before the kernel wrote the pages
+		if (dirty) {
+			current().force();
+			dirty = false;
+		}
+		segments.clear();
+	}
+
+	private MappedByteBuffer current() {
+		return segments.get(segments.size() - 1).buffer;
+	}
+
+	private void rotate(long first) throws IOException {
+		if (!segments.isEmpty()) {
+			// the full segment is not written again
+			force();
+		}
+		MappedByteBuffer next = spare;
+		if (next != null) {
+			// only a rename, the writer already created and mapped the file
+			spare = null;
+			Path path = directory.resolve(name(first));
+			Files.move(directory.resolve(SPARE), path, StandardCopyOption.ATOMIC_MOVE);
+			segments.add(new Segment(path, first, next));
+			writer.execute(this::prepareSpare);
+		} else {
+			// the writer is still busy with the previous spare
+			segments.add(map(first));
+		}
+		while (segments.size() > SEGMENTS) {
+			retired.add(segments.remove(0));
+		}
+		if (replaying == 0) {
+			deleteRetired();
+		}
+	}
+
+	private void deleteRetired() {
+		for (Segment segment : retired) {
+			writer.execute(() -> {
+				try {
+					Files.deleteIfExists(segment.path);
+				} catch (IOException e) {
+					Log.warn("Altes Journal Segment konnte nicht gelöscht werden: {}", e.getMessage());
+				}
+			});
+		}
+		retired.clear();
+	}
+
+	/**
+	 * create the file of the next segment, runs on the writer thread
+	 */
+	private void prepareSpare() {
+		Path path = directory.resolve(SPARE);
+		try {
+			// a spare of a previous run may be incomplete
+			Files.deleteIfExists(path);
+			spare = map(path);
+		} catch (IOException e) {
+			Log.warn("Nächstes Journal Segment konnte nicht angelegt werden: {}", e.getMessage());
+		}
+	}
+
+	private Segment map(long first) throws IOException {
+		Path path = directory.resolve(name(first));
+		return new Segment(path, first, map(path));
+	}
+
+	private static MappedByteBuffer map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// a new file is filled with zeros which marks the end of the data
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+	}
+
+	private static String name(long first) {
+		return String.format("%s%020d%s", PREFIX, first, SUFFIX);
+	}
+}
@@ -0,0 +1,248 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger of the server. The caller only stores the message
+ * template and its arguments in a preallocated record of a lock-free ring
+ * buffer, a background thread formats the message and writes it to stdout or
+ * stderr. Logging never blocks and does not allocate memory, if the ring is
+ * full the message is dropped and counted.
+ *
+ * A template may contain up to two {@code {}} placeholders, the first one is
+ * replaced with the text argument and the second one with the number.
+ */
+public final class Log {
+
+	/**
+	 * Severity of a message.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR;
+
+		/**
+		 * @param name level name, case does not matter
+		 * @return the level
+		 * @throws IllegalArgumentException if the level is unknown
+		 */
+		public static Level parse(String name) {
+			try {
+				return valueOf(name.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unbekanntes Log Level: " + name);
+			}
+		}
+	}
+
+	/**
+	 * preallocated message, only the producer which claimed it writes it
+	 */
+	private static final class Record {
+		Level level;
+		String template;
+		String text;
+		long number;
+		boolean hasNumber;
+	}
+
+	// number of records, must be a power of two
+	private static final int SIZE = 1024;
+
+	private static final Record[] records = new Record[SIZE];
+	// sequence number of the message stored in each record, -1 while it is
+	// written
+	private static final AtomicLongArray published = new AtomicLongArray(SIZE);
+	// next sequence number to claim and the next one to write out
+	private static final AtomicLong head = new AtomicLong();
+	private static final AtomicLong tail = new AtomicLong();
+	private static final LongAdder dropped = new LongAdder();
+
+	private static volatile Level level = Level.INFO;
+	private static volatile boolean sleeping;
+	private static final Thread writer;
+
+	static {
+		for (int i = 0; i < SIZE; i++) {
+			records[i] = new Record();
+			published.set(i, i - SIZE);
+		}
+		writer = new Thread(Log::write, "log");
+		writer.setDaemon(true);
+		writer.start();
+		// write the remaining messages, e.g. the reason of an exit
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * @param minimum messages below this level are ignored
+	 */
+	public static void setLevel(Level minimum) {
+		level = minimum;
+	}
+
+	/**
+	 * @return number of messages dropped because the ring buffer was full
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	public static void debug(String template) {
+		log(Level.DEBUG, template, null, 0, false);
+	}
+
+	public static void debug(String template, String text) {
+		log(Level.DEBUG, template, text, 0, false);
+	}
+
+	public static void info(String template) {
+		log(Level.INFO, template, null, 0, false);
+	}
+
+	public static void info(String template, String text) {
+		log(Level.INFO, template, text, 0, false);
+	}
+
+	public static void info(String template, long number) {
+		log(Level.INFO, template, null, number, true);
+	}
+
+	public static void info(String template, String text, long number) {
+		log(Level.INFO, template, text, number, true);
+	}
+
+	public static void warn(String template, String text) {
+		log(Level.WARN, template, text, 0, false);
+	}
+
+	public static void warn(String template, String text, long number) {
+		log(Level.WARN, template, text, number, true);
+	}
+
+	public static void error(String template, String text) {
+		log(Level.ERROR, template, text, 0, false);
+	}
+
+	private static void log(Level messageLevel, String template, String text, long number, boolean hasNumber) {
+		if (messageLevel.compareTo(level) < 0) {
+			return;
+		}
+		long sequence;
+		do {
+			sequence = head.get();
+			if (sequence - tail.get() >= SIZE) {
+				dropped.increment();
+				return;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) (sequence & (SIZE - 1));
+		Record record = records[index];
+		record.level = messageLevel;
+		record.template = template;
+		record.text = text;
+		record.number = number;
+		record.hasNumber = hasNumber;
+		// makes the record visible to the writer thread
+		published.set(index, sequence);
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private static void write() {
+		while (true) {
+			if (!drain()) {
+				sleeping = true;
+				// check again, a message may have been published before the flag was set
+				if (!drain()) {
+					LockSupport.park();
+				}
+				sleeping = false;
+			}
+		}
+	}
+
+	// formats the messages, only used while holding the lock of drain()
+	private static final StringBuilder line = new StringBuilder(256);
+	private static long reportedDropped;
+
+	/**
+	 * write all published messages
+	 *
+	 * @return false if there was nothing to write
+	 */
+	private static synchronized boolean drain() {
+		boolean written = false;
+		long sequence = tail.get();
+		while (true) {
+			int index = (int) (sequence & (SIZE - 1));
+			if (published.get(index) != sequence) {
+				break;
+			}
+			Record record = records[index];
+			format(record);
+			Level messageLevel = record.level;
+			record.template = null;
+			record.text = null;
+			// the record can be claimed again
+			tail.set(++sequence);
+			print(messageLevel);
+			written = true;
+		}
+		long lost = dropped.sum();
+		if (lost != reportedDropped) {
+			line.setLength(0);
+			line.append(lost - reportedDropped).append(" Log Nachrichten verworfen");
+			reportedDropped = lost;
+			print(Level.WARN);
+		}
+		return written;
+	}
+
+	private static void format(Record record) {
+		line.setLength(0);
+		String template = record.template;
+		int placeholders = 0;
+		int start = 0;
+		int next;
+		while ((next = template.indexOf("{}", start)) >= 0) {
+			line.append(template, start, next);
+			if (placeholders == 0 && record.text != null) {
+				line.append(record.text);
+			} else if (record.hasNumber) {
+				line.append(record.number);
+			}
+			placeholders++;
+			start = next + 2;
+		}
+		line.append(template, start, template.length());
+	}
+
+	private static void print(Level messageLevel) {
+		PrintStream out = messageLevel.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+		out.println(line);
+	}
+}
@@ -0,0 +1,411 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+import dev.holzinger.pibell.common.LatencyHistogram;
+
+/**
+ * Counters and latency histograms of the server. Recording is allocation-free
+ * and never blocks, the values can be read over JMX and in the Prometheus text
+ * format from a small HTTP endpoint.
+ */
+public class Metrics implements MetricsMBean {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	// time from the gpio edge until the event was written to the first and to
+	// the last client in microseconds
+	final LatencyHistogram firstWrite = new LatencyHistogram();
+	final LatencyHistogram lastWrite = new LatencyHistogram();
+	// time from the gpio edge until a relay received the event from its upstream
+	// server, this includes the difference of the clocks of both machines
+	final LatencyHistogram relayReceive = new LatencyHistogram();
+	// time a relay needed from reading the event from upstream until it wrote it
+	// to the first client, measured on the clock of the relay
+	final LatencyHistogram relayHop = new LatencyHistogram();
+	// time from sending an event until the client acknowledged it and from the
+	// gpio edge until the acknowledgement arrived
+	final LatencyHistogram ackRoundTrip = new LatencyHistogram();
+	final LatencyHistogram ackDelivery = new LatencyHistogram();
+	// duration of the TLS handshakes which needed the public key operations and
+	// of those which resumed an earlier session
+	final LatencyHistogram tlsFullHandshake = new LatencyHistogram();
+	final LatencyHistogram tlsResumedHandshake = new LatencyHistogram();
+
+	final LongAdder accepts = new LongAdder();
+	final LongAdder events = new LongAdder();
+	final LongAdder writeFailures = new LongAdder();
+	final LongAdder heartbeatTimeouts = new LongAdder();
+	// connections closed right after the accept because of a limit
+	final LongAdder rejectedMaxConnections = new LongAdder();
+	final LongAdder rejectedPerAddress = new LongAdder();
+	// number of times accepting was paused by the accept rate
+	final LongAdder acceptThrottled = new LongAdder();
+	// events sent again because the client did not acknowledge them, clients
+	// closed because they never did and events which were pushed out of the
+	// tracking before their acknowledgement
+	final LongAdder retransmits = new LongAdder();
+	final LongAdder ackTimeouts = new LongAdder();
+	final LongAdder ackOverflows = new LongAdder();
+	// connections closed because the TLS handshake failed
+	final LongAdder tlsHandshakeFailures = new LongAdder();
+
+	// number of clients in the list of the slowest clients
+	private static final int SLOWEST = 10;
+
+	private final EventLoop loop;
+	private final List<Debouncer> debouncers = new CopyOnWriteArrayList<Debouncer>();
+
+	Metrics(EventLoop loop) {
+		this.loop = loop;
+	}
+
+	/**
+	 * include the suppressed edges of the debouncer
+	 *
+	 * @param debouncer debouncer of an input
+	 */
+	public void add(Debouncer debouncer) {
+		debouncers.add(debouncer);
+	}
+
+	/**
+	 * make the metrics available over JMX
+	 *
+	 * @throws JMException if the bean cannot be registered
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("dev.holzinger.pibell:type=Metrics"));
+	}
+
+	/**
+	 * serve the metrics on http://ADDRESS/metrics in the Prometheus text format
+	 *
+	 * @param address address and port to listen on
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void startHttp(InetSocketAddress address) throws IOException {
+		HttpServer http = HttpServer.create(address, 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		// the default executor handles the requests in a single background thread
+		http.start();
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text format
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder(2048);
+		gauge(out, "pibell_clients_connected", "Connected clients", getConnectedClients());
+		counter(out, "pibell_accepts_total", "Accepted connections", getAccepts());
+		counter(out, "pibell_events_total", "Events sent to the clients", getEvents());
+		counter(out, "pibell_rejected_max_connections_total",
+				"Connections rejected because the server reached its connection limit", getRejectedMaxConnections());
+		counter(out, "pibell_rejected_per_address_total",
+				"Connections rejected because the address reached its connection limit", getRejectedPerAddress());
+		counter(out, "pibell_accept_throttled_total", "Times accepting was paused by the accept rate",
+				getAcceptThrottled());
+		counter(out, "pibell_write_failures_total", "Connections closed because a write failed", getWriteFailures());
+		counter(out, "pibell_heartbeat_timeouts_total", "Connections closed because the heartbeat timed out",
+				getHeartbeatTimeouts());
+		counter(out, "pibell_retransmits_total", "Events sent again because they were not acknowledged",
+				getRetransmits());
+		counter(out, "pibell_ack_timeouts_total", "Connections closed because an event was never acknowledged",
+				getAckTimeouts());
+		counter(out, "pibell_ack_overflows_total", "Events no longer tracked because too many were unacknowledged",
+				getAckOverflows());
+		counter(out, "pibell_overflow_dropped_total", "Messages dropped because a client queue was full",
+				getDropped());
+		counter(out, "pibell_overflow_coalesced_total", "Messages coalesced because a client queue was full",
+				getCoalesced());
+		counter(out, "pibell_overflow_evicted_total", "Clients disconnected because their queue was full",
+				getEvicted());
+		counter(out, "pibell_incoming_dropped_total", "Events dropped before the fan-out", getIncomingDropped());
+		counter(out, "pibell_log_dropped_total", "Log messages dropped because the log buffer was full",
+				getLogDropped());
+		counter(out, "pibell_suppressed_edges_total", "Gpio edges suppressed by the debouncer",
+				getSuppressedEdges());
+		summary(out, "pibell_edge_to_first_write_seconds", "Time from the gpio edge to the write to the first client",
+				firstWrite);
+		summary(out, "pibell_edge_to_last_write_seconds", "Time from the gpio edge to the write to the last client",
+				lastWrite);
+		if (ackRoundTrip.getCount() > 0) {
+			summary(out, "pibell_ack_round_trip_seconds", "Time from sending an event until the client acknowledged it",
+					ackRoundTrip);
+			summary(out, "pibell_edge_to_ack_seconds", "Time from the gpio edge until the client acknowledged the event",
+					ackDelivery);
+		}
+		if (tlsFullHandshake.getCount() + tlsResumedHandshake.getCount() + getTlsHandshakeFailures() > 0) {
+			counter(out, "pibell_tls_handshake_failures_total", "Connections closed because the TLS handshake failed",
+					getTlsHandshakeFailures());
+			summary(out, "pibell_tls_full_handshake_seconds", "Duration of the TLS handshakes with a new session",
+					tlsFullHandshake);
+			summary(out, "pibell_tls_resumed_handshake_seconds",
+					"Duration of the TLS handshakes which resumed a session", tlsResumedHandshake);
+		}
+		if (relayReceive.getCount() > 0) {
+			summary(out, "pibell_relay_receive_seconds",
+					"Time from the gpio edge until the relay received the event from upstream", relayReceive);
+			summary(out, "pibell_relay_hop_seconds",
+					"Time from receiving the event from upstream until the relay wrote it to the first client",
+					relayHop);
+		}
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		header(out, name, help, "gauge");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+		header(out, name, help, "summary");
+		for (double quantile : QUANTILES) {
+			out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(histogram.getQuantile(quantile) / 1e6).append('\n');
+		}
+		out.append(name).append("_sum ").append(histogram.getSum() / 1e6).append('\n');
+		out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	@Override
+	public int getConnectedClients() {
+		return loop.getClients().size();
+	}
+
+	@Override
+	public long getAccepts() {
+		return accepts.sum();
+	}
+
+	@Override
+	public long getRejectedMaxConnections() {
+		return rejectedMaxConnections.sum();
+	}
+
+	@Override
+	public long getRejectedPerAddress() {
+		return rejectedPerAddress.sum();
+	}
+
+	@Override
+	public long getAcceptThrottled() {
+		return acceptThrottled.sum();
+	}
+
+	@Override
+	public long getEvents() {
+		return events.sum();
+	}
+
+	@Override
+	public long getWriteFailures() {
+		return writeFailures.sum();
+	}
+
+	@Override
+	public long getHeartbeatTimeouts() {
+		return heartbeatTimeouts.sum();
+	}
+
+	@Override
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	@Override
+	public long getAckTimeouts() {
+		return ackTimeouts.sum();
+	}
+
+	@Override
+	public long getAckOverflows() {
+		return ackOverflows.sum();
+	}
+
+	@Override
+	public long getTlsHandshakeFailures() {
+		return tlsHandshakeFailures.sum();
+	}
+
+	@Override
+	public long getTlsFullHandshakes() {
+		return tlsFullHandshake.getCount();
+	}
+
+	@Override
+	public long getTlsResumedHandshakes() {
+		return tlsResumedHandshake.getCount();
+	}
+
+	@Override
+	public long getTlsFullHandshakeP50Micros() {
+		return tlsFullHandshake.getQuantile(0.5);
+	}
+
+	@Override
+	public long getTlsResumedHandshakeP50Micros() {
+		return tlsResumedHandshake.getQuantile(0.5);
+	}
+
+	@Override
+	public String[] getSlowestClients() {
+		List<Connection> slowest = new ArrayList<Connection>();
+		for (Iterator<Connection> it = loop.getClients().iterator(); it.hasNext();) {
+			Connection client = it.next();
+			if (client.roundTrip > 0 || client.retransmits > 0) {
+				slowest.add(client);
+			}
+		}
+		slowest.sort(Comparator.comparingLong((Connection client) -> client.roundTrip).reversed());
+		String[] result = new String[Math.min(SLOWEST, slowest.size())];
+		for (int i = 0; i < result.length; i++) {
+			Connection client = slowest.get(i);
+			result[i] = String.format("%s rtt=%.1fms max=%.1fms retransmits=%d", client.getAddress(),
+					client.roundTrip / 1000.0, client.maxRoundTrip / 1000.0, client.retransmits);
+		}
+		return result;
+	}
+
+	@Override
+	public long getAckRoundTripP50Micros() {
+		return ackRoundTrip.getQuantile(0.5);
+	}
+
+	@Override
+	public long getAckRoundTripP99Micros() {
+		return ackRoundTrip.getQuantile(0.99);
+	}
+
+	@Override
+	public long getEdgeToAckP99Micros() {
+		return ackDelivery.getQuantile(0.99);
+	}
+
+	@Override
+	public long getDropped() {
+		return loop.getClients().getDropped();
+	}
+
+	@Override
+	public long getCoalesced() {
+		return loop.getClients().getCoalesced();
+	}
+
+	@Override
+	public long getEvicted() {
+		return loop.getClients().getEvicted();
+	}
+
+	@Override
+	public long getIncomingDropped() {
+		return loop.getIncomingDropped();
+	}
+
+	@Override
+	public long getLogDropped() {
+		return Log.getDropped();
+	}
+
+	@Override
+	public long getSuppressedEdges() {
+		long sum = 0;
+		for (Debouncer debouncer : debouncers) {
+			sum += debouncer.getSuppressed();
+		}
+		return sum;
+	}
+
+	@Override
+	public long getFirstWriteP50Micros() {
+		return firstWrite.getQuantile(0.5);
+	}
+
+	@Override
+	public long getFirstWriteP99Micros() {
+		return firstWrite.getQuantile(0.99);
+	}
+
+	@Override
+	public long getLastWriteP50Micros() {
+		return lastWrite.getQuantile(0.5);
+	}
+
+	@Override
+	public long getLastWriteP99Micros() {
+		return lastWrite.getQuantile(0.99);
+	}
+
+	@Override
+	public long getLastWriteP999Micros() {
+		return lastWrite.getQuantile(0.999);
+	}
+
+	@Override
+	public long getRelayReceiveP50Micros() {
+		return relayReceive.getQuantile(0.5);
+	}
+
+	@Override
+	public long getRelayReceiveP99Micros() {
+		return relayReceive.getQuantile(0.99);
+	}
+
+	@Override
+	public long getRelayHopP50Micros() {
+		return relayHop.getQuantile(0.5);
+	}
+
+	@Override
+	public long getRelayHopP99Micros() {
+		return relayHop.getQuantile(0.99);
+	}
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+/**
+ * JMX view of the server {@link Metrics}.
+ */
+public interface MetricsMBean {
+
+	public int getConnectedClients();
+
+	public long getAccepts();
+
+	public long getRejectedMaxConnections();
+
+	public long getRejectedPerAddress();
+
+	public long getAcceptThrottled();
+
+	public long getEvents();
+
+	public long getWriteFailures();
+
+	public long getHeartbeatTimeouts();
+
+	public long getRetransmits();
+
+	public long getAckTimeouts();
+
+	public long getAckOverflows();
+
+	public long getTlsHandshakeFailures();
+
+	public long getTlsFullHandshakes();
+
+	public long getTlsResumedHandshakes();
+
+	public long getTlsFullHandshakeP50Micros();
+
+	public long getTlsResumedHandshakeP50Micros();
+
+	/**
+	 * @return the clients with the highest smoothed acknowledgement round trip
+	 */
+	public String[] getSlowestClients();
+
+	public long getAckRoundTripP50Micros();
+
+	public long getAckRoundTripP99Micros();
+
+	public long getEdgeToAckP99Micros();
+
+	public long getDropped();
+
+	public long getCoalesced();
+
+	public long getEvicted();
+
+	public long getIncomingDropped();
+
+	public long getLogDropped();
+
+	public long getSuppressedEdges();
+
+	public long getFirstWriteP50Micros();
+
+	public long getFirstWriteP99Micros();
+
+	public long getLastWriteP50Micros();
+
+	public long getLastWriteP99Micros();
+
+	public long getLastWriteP999Micros();
+
+	public long getRelayReceiveP50Micros();
+
+	public long getRelayReceiveP99Micros();
+
+	public long getRelayHopP50Micros();
+
+	public long getRelayHopP99Micros();
+}
@@ -0,0 +1,135 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+/**
+ * Events sent to a client which it did not acknowledge yet. The sequence
+ * numbers sent to a client grow, so the events are kept in a fixed ring indexed
+ * by the sequence number and tracking an event allocates nothing. Only used by
+ * the event loop thread.
+ */
+class Outstanding {
+
+	// sequence number of the event in each slot, 0 if the slot is free
+	private final long[] sequences;
+	// System.nanoTime() of the first and the last transmission
+	private final long[] firstSent;
+	private final long[] lastSent;
+	// time of the gpio edge in microseconds since the epoch
+	private final long[] edges;
+	private final byte[] attempts;
+	private int size;
+
+	/**
+	 * @param capacity maximum number of unacknowledged events
+	 */
+	Outstanding(int capacity) {
+		sequences = new long[capacity];
+		firstSent = new long[capacity];
+		lastSent = new long[capacity];
+		edges = new long[capacity];
+		attempts = new byte[capacity];
+	}
+
+	/**
+	 * track a sent event, a retransmitted event keeps its first transmission
+	 *
+	 * @param sequence sequence number of the event
+	 * @param edge     time of the gpio edge in microseconds since the epoch
+	 * @param now      {@link System#nanoTime()}
+	 * @return false if an older unacknowledged event was pushed out of the ring
+	 */
+	boolean add(long sequence, long edge, long now) {
+		int slot = slot(sequence);
+		if (sequences[slot] == sequence) {
+			lastSent[slot] = now;
+			attempts[slot]++;
+			return true;
+		}
+		boolean free = sequences[slot] == 0;
+		if (free) {
+			size++;
+		}
+		sequences[slot] = sequence;
+		firstSent[slot] = now;
+		lastSent[slot] = now;
+		edges[slot] = edge;
+		attempts[slot] = 1;
+		return free;
+	}
+
+	/**
+	 * @return the slot of the event, -1 if it is not outstanding
+	 */
+	int find(long sequence) {
+		int slot = slot(sequence);
+		return sequence != 0 && sequences[slot] == sequence ? slot : -1;
+	}
+
+	/**
+	 * stop tracking the event in the slot
+	 */
+	void remove(int slot) {
+		if (sequences[slot] != 0) {
+			sequences[slot] = 0;
+			size--;
+		}
+	}
+
+	/**
+	 * @return true if no event is outstanding
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	int capacity() {
+		return sequences.length;
+	}
+
+	/**
+	 * @return sequence number of the event in the slot, 0 if the slot is free
+	 */
+	long getSequence(int slot) {
+		return sequences[slot];
+	}
+
+	long getFirstSent(int slot) {
+		return firstSent[slot];
+	}
+
+	long getLastSent(int slot) {
+		return lastSent[slot];
+	}
+
+	long getEdge(int slot) {
+		return edges[slot];
+	}
+
+	/**
+	 * @return number of transmissions of the event in the slot
+	 */
+	int getAttempts(int slot) {
+		return attempts[slot];
+	}
+
+	private int slot(long sequence) {
+		return (int) Long.remainderUnsigned(sequence, sequences.length);
+	}
+}
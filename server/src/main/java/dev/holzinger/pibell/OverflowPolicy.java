@@ -0,0 +1,56 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+/**
+ * What to do with a client whose outbound queue is full because it does not
+ * read fast enough.
+ */
+public enum OverflowPolicy {
+	/**
+	 * drop the oldest queued message to make room for the new one
+	 */
+	DROP_OLDEST,
+	/**
+	 * replace the newest queued message with the new one
+	 */
+	COALESCE,
+	/**
+	 * close the connection to the client
+	 */
+	DISCONNECT;
+
+	/**
+	 * parse the policy from the command line form, e.g. "drop-oldest"
+	 *
+	 * @param value policy name
+	 * @return the policy
+	 * @throws IllegalArgumentException if there is no such policy
+	 */
+	public static OverflowPolicy parse(String value) {
+		for (OverflowPolicy policy : values()) {
+			if (policy.toString().equals(value)) {
+				return policy;
+			}
+		}
+		throw new IllegalArgumentException("Unbekannte overflow policy: " + value);
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase().replace('_', '-');
+	}
+}
@@ -0,0 +1,77 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/**
+ * Reads the bell from a gpio pin of the Raspberry Pi with pi4j.
+ */
+public class Pi4jInputSource implements InputSource {
+
+	private final Pin pin;
+	private GpioController gpio;
+
+	/**
+	 * @param pin wiringPi pin number, the bell is connected to pin 2
+	 * @throws IllegalArgumentException if the Raspberry Pi has no such pin
+	 */
+	public Pi4jInputSource(int pin) {
+		this.pin = RaspiPin.getPinByAddress(pin);
+		if (this.pin == null) {
+			throw new IllegalArgumentException("Ungültiger gpio Pin: " + pin);
+		}
+	}
+
+	@Override
+	public void start(EdgeListener listener) {
+		// create gpio controller
+		gpio = GpioFactory.getInstance();
+
+		// provision the gpio pin as an input pin with its internal pull down resistor
+		// enabled
+		final GpioPinDigitalInput myButton = gpio.provisionDigitalInputPin(pin,
+				PinPullResistance.PULL_DOWN);
+
+		// set shutdown state for this input pin
+		myButton.setShutdownOptions(true);
+
+		// create and register gpio pin listener
+		myButton.addListener(new GpioPinListenerDigital() {
+			@Override
+			public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+				listener.edge(event.getState() == PinState.HIGH, System.nanoTime());
+			}
+
+		});
+	}
+
+	@Override
+	public void close() {
+		if (gpio != null) {
+			gpio.shutdown();
+			gpio = null;
+		}
+	}
+}
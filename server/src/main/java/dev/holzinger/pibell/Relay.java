@@ -0,0 +1,257 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import dev.holzinger.pibell.common.Backoff;
+import dev.holzinger.pibell.common.Frame;
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.SequenceWindow;
+import dev.holzinger.pibell.common.Timestamps;
+
+/**
+ * Subscribes to an upstream server like a client and sends every event with
+ * its original sequence number and timestamp to the clients of the local
+ * {@link EventLoop}. This allows a tree of servers to spread the fan-out over
+ * several machines.
+ */
+class Relay implements Runnable {
+
+	// timeout to connect and to receive the welcome from the upstream server
+	private static final int TIMEOUT = 10000;
+
+	private final InetSocketAddress upstream;
+	private final boolean tls;
+	// host and port of the upstream server for the log
+	private final String name;
+	private final EventLoop loop;
+	private final Backoff backoff = new Backoff(250, 30000, 60000);
+	// sequence numbers sent to our clients
+	private final SequenceWindow received = new SequenceWindow();
+	private final Frame frame = new Frame();
+
+	private Socket socket;
+	private DataInputStream in;
+
+	/**
+	 * @param upstream address of the upstream server
+	 * @param tls      connect to the upstream server with TLS
+	 * @param loop     loop which sends the events to our clients
+	 */
+	Relay(InetSocketAddress upstream, boolean tls, EventLoop loop) {
+		this.upstream = upstream;
+		this.tls = tls;
+		this.name = upstream.getHostString() + ":" + upstream.getPort();
+		this.loop = loop;
+	}
+
+	/**
+	 * connect to the upstream server, retry until it answers
+	 *
+	 * @return sequence number of the last event sent by the upstream server
+	 */
+	long connect() {
+		while (true) {
+			long start = System.nanoTime();
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(upstream.getHostString(), upstream.getPort()), TIMEOUT);
+				socket.setSoTimeout(TIMEOUT);
+				socket.setTcpNoDelay(true);
+				if (tls) {
+					socket = startTls(socket);
+				}
+				ByteBuffer hello = ByteBuffer.allocate(Protocol.HEADER_SIZE + 9);
+				Protocol.writeHello(hello, received.getLast(), Protocol.FLAG_ACK);
+				write(socket, hello);
+
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				frame.read(in);
+				if (frame.getType() != Protocol.WELCOME) {
+					throw new IOException("Unbekannte Antwort vom Server");
+				}
+				long sequence = frame.getSequence();
+				if (received.getLast() < 0 || sequence < received.getLast()) {
+					// first connection or the upstream server lost its journal
+					received.reset(sequence);
+				}
+				int heartbeat = frame.getPayloadLength() >= 12 ? frame.getInt(8) : 0;
+				socket.setSoTimeout(heartbeat > 0 ? 3 * heartbeat : 0);
+				Log.info("Mit Server {} verbunden in {} ms", name + " nach " + (backoff.getAttempt() + 1) + " Versuch(en)",
+						(System.nanoTime() - start) / 1000000);
+				backoff.connected();
+				this.socket = socket;
+				this.in = in;
+				return sequence;
+			} catch (IOException e) {
+				close(socket);
+				long delay = backoff.nextDelay();
+				Log.warn("Verbindung zum Server {} fehlgeschlagen, neuer Versuch in {} ms",
+						name + " (" + e.getMessage() + ")", delay);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return received.getLast();
+				}
+			}
+		}
+	}
+
+	/**
+	 * connect to the upstream server and forward the events until the process is
+	 * stopped
+	 */
+	public void run() {
+		long sequence = connect();
+		if (sequence >= 0) {
+			// our clients get the sequence numbers of the upstream server
+			loop.setSequence(sequence);
+		}
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				while (true) {
+					frame.read(in);
+					long receivedAt = System.nanoTime();
+					if (Protocol.isEvent(frame.getType())) {
+						// our clients first, the acknowledgement only stops the
+						// retransmission by the upstream server
+						forward(receivedAt);
+						ByteBuffer ack = ByteBuffer.allocate(Protocol.HEADER_SIZE + 8);
+						Protocol.writeAck(ack, frame.getSequence());
+						write(socket, ack);
+						checkGap(frame.getSequence());
+					} else if (frame.getType() == Protocol.CHANNELS) {
+						// our clients get the channel names of the upstream server
+						try {
+							loop.setChannels(frame.getNames());
+						} catch (IllegalArgumentException e) {
+							Log.warn("Kanäle vom Server {} ignoriert", name + " (" + e.getMessage() + ")");
+						}
+					} else if (frame.getType() == Protocol.PING) {
+						ByteBuffer pong = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+						Protocol.writePong(pong);
+						write(socket, pong);
+						checkGap(frame.getSequence());
+					} else if (frame.getType() == Protocol.DRAIN) {
+						reconnectAfterDrain(frame.getPayloadLength() >= 12 ? frame.getInt(8) : 0);
+					}
+				}
+			} catch (EOFException e) {
+				Log.warn("Verbindung vom Server {} geschlossen", name);
+			} catch (SocketTimeoutException e) {
+				Log.warn("Server {} antwortet nicht", name);
+			} catch (IOException e) {
+				Log.warn("Verbindung zum Server {} verloren", name + " (" + e.getMessage() + ")");
+			}
+			backoff.disconnected();
+			close(socket);
+			connect();
+		}
+	}
+
+	/**
+	 * the upstream server restarts, connect to the next process within the
+	 * window instead of waiting for the backoff. The journal of the upstream
+	 * server continues the sequence numbers, the missed events are replayed.
+	 */
+	private void reconnectAfterDrain(int window) {
+		Log.info("Server {} startet neu, neue Verbindung in {} ms", name, window);
+		close(socket);
+		try {
+			Thread.sleep(window > 0 ? ThreadLocalRandom.current().nextLong(window + 1) : 0);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		backoff.reset();
+		connect();
+	}
+
+	/**
+	 * @param receivedAt {@link System#nanoTime()} when the frame was read
+	 */
+	private void forward(long receivedAt) {
+		long sequence = frame.getSequence();
+		if (!received.add(sequence)) {
+			// already sent, e.g. the upstream server replayed it twice
+			return;
+		}
+		if (frame.getChannel() >= Protocol.MAX_CHANNELS) {
+			Log.warn("Ereignis {} mit ungültigem Kanal {} verworfen", String.valueOf(sequence), frame.getChannel());
+			return;
+		}
+		long timestamp = frame.getTimestamp();
+		// includes the time of the upstream server and the difference of the clocks,
+		// the hop through this relay is recorded by the loop
+		loop.getMetrics().relayReceive.record(Timestamps.nowMicros() - timestamp);
+		loop.relay(EventLoop.event(frame.getType(), sequence, timestamp, frame.getChannel()), receivedAt);
+	}
+
+	/**
+	 * request missing events from the upstream server
+	 */
+	private void checkGap(long newest) throws IOException {
+		if (newest <= received.getLast() && received.getMissing() == 0) {
+			return;
+		}
+		ByteBuffer repair = ByteBuffer.allocate(Protocol.HEADER_SIZE + 8);
+		Protocol.writeRepair(repair, received.getRepairAfter());
+		write(socket, repair);
+	}
+
+	/**
+	 * wrap the connected socket, the default context of the JVM caches the
+	 * session so that a reconnect can resume it
+	 */
+	private SSLSocket startTls(Socket socket) throws IOException {
+		SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket,
+				upstream.getHostString(), upstream.getPort(), true);
+		SSLParameters parameters = ssl.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		ssl.setSSLParameters(parameters);
+		ssl.startHandshake();
+		return ssl;
+	}
+
+	private static void write(Socket socket, ByteBuffer frame) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(frame.array(), 0, frame.position());
+		out.flush();
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore errors
+		}
+	}
+}
@@ -16,29 +16,33 @@
 package dev.holzinger.pibell;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.URISyntaxException;
-import java.net.Socket;
-import java.net.URI;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-import com.pi4j.io.gpio.*;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import javax.management.JMException;
+
+import dev.holzinger.pibell.common.Protocol;
+import dev.holzinger.pibell.common.Timestamps;
 
 public class Server {
 
-	private String ip;
-	private int port;
-	private ArrayList<Socket> clients = new ArrayList<Socket>();
+	// time the shutdown waits for the clients to get the drain frame
+	private static final long DRAIN_WAIT = 5000;
+
+	private Config config;
+	private EventLoop loop;
+	// one debouncer per channel
+	private final List<Debouncer> debouncers = new ArrayList<Debouncer>();
 
 	private static void usage() {
-		System.err.println("pibell [LISTEN_ADDRESS:PORT]");
+		System.err.print(Config.usage());
 	}
 
 	private static void errorAndExit(String message) {
@@ -48,118 +52,145 @@ public class Server {
 	}
 
 	public static void main(String[] args) {
-		if (args.length > 1) {
-			errorAndExit("Zu viele argumente");
-		}
-
-		// defaults
-		String listenIP = "0.0.0.0";
-		int listenPort = 12321;
-
-		if (args.length == 1) {
-			if (args[0].equals("--help") || args[0].equals("-h")) {
+		for (String arg : args) {
+			if (arg.equals("--help") || arg.equals("-h")) {
 				// user wants help print usage and exit
 				usage();
 				return;
 			}
+		}
 
-			try {
-				// WORKAROUND: add any scheme to make the resulting URI valid.
-				URI uri = new URI("tcp://" + args[0]); // may throw URISyntaxException
-				if (uri.getHost() == null || uri.getPort() == -1) {
-					throw new URISyntaxException(args[0], "Verbindung braucht host and port Teil");
-				}
-
-				listenIP = uri.getHost();
-				listenPort = uri.getPort();
-
-			} catch (URISyntaxException ex) {
-				errorAndExit(ex.getMessage());
-			}
+		Config config = null;
+		try {
+			config = Config.parse(args);
+		} catch (IllegalArgumentException ex) {
+			errorAndExit(ex.getMessage());
 		}
-		Server server = new Server(listenIP, listenPort);
+		Log.setLevel(config.logLevel);
+		Server server = new Server(config);
 		server.start();
 	}
 
-	private Server(String ip, int port) {
-		this.ip = ip;
-		this.port = port;
+	private Server(Config config) {
+		this.config = config;
 	}
 
 	private void start() {
 
-		// create gpio controller
-		final GpioController gpio = GpioFactory.getInstance();
-
-		// provision gpio pin #02 as an input pin with its internal pull down resistor
-		// enabled
-		final GpioPinDigitalInput myButton = gpio.provisionDigitalInputPin(RaspiPin.GPIO_02,
-				PinPullResistance.PULL_DOWN);
-
-		// set shutdown state for this input pin
-		myButton.setShutdownOptions(true);
-
-		// create and register gpio pin listener
-		myButton.addListener(new GpioPinListenerDigital() {
-			@Override
-			public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
-				// only use the HIGH state
-				// we only care when the bell is pressed not when it is released
-				if (event.getState() == PinState.HIGH) {
-					System.out.println("Klingel festgestellt");
-					// send message to all clients
-					broadcast();
-				}
-			}
-
-		});
-
 		InetAddress listenAddress = null;
 		try {
-			listenAddress = InetAddress.getByName(ip);
+			listenAddress = InetAddress.getByName(config.ip);
 		} catch (UnknownHostException e) {
 			errorAndExit("Ungültige IP Adresse: "+ e.getMessage());
 		}
-		try (ServerSocket server = new ServerSocket(port, 0, listenAddress)) {
-			System.out.println("Server gestartet auf " + ip + ":" + port);
-			while (true) {
-				Socket client = server.accept();
-				// make sure the tcp connection stays alive because we do not send for a long time
-				client.setKeepAlive(true);
-				clients.add(client);
-				System.err.println("Neuer Client verbunden von " + client.getInetAddress().getHostAddress());
-			}
-
+		ServerSocketChannel inherited = inheritedChannel();
+		try {
+			loop = inherited != null ? new EventLoop(inherited, config)
+					: new EventLoop(new InetSocketAddress(listenAddress, config.port), config);
 		} catch (BindException e) {
 			// starting the server socket failed -> e.g. port in use or a non local ip
 			errorAndExit("Server konnte nicht gestartet werden: " + e.getMessage());
 		} catch (IOException e) {
 			System.err.println("Unerwarteter IO Fehler");
 			e.printStackTrace();
+			return;
 		}
-	}
 
-	private void broadcast() {
-		System.out.println("Verbundene clients: " + clients.size());
-		// NOTE: Do not use foreach otherwise we cannot remove the client inside the
-		// loop.
-		for (Iterator<Socket> it = clients.iterator(); it.hasNext();) {
-			Socket client = it.next();
+		Metrics metrics = loop.getMetrics();
+		try {
+			metrics.registerMBean();
+		} catch (JMException e) {
+			Log.warn("Metriken konnten nicht über JMX veröffentlicht werden: {}", e.getMessage());
+		}
+		if (config.metrics != null) {
 			try {
-				// NOTE: Do not use a PrintWriter here.
-				// PrintWriter never throws a IOException
-				OutputStream senden = client.getOutputStream();
-				// send "1\n"
-				senden.write(49);
-				senden.write(10);
-				senden.flush();
-			} catch (IOException ex) {
-				System.err.println("Verbindung zu Client " + client.getInetAddress().getHostAddress()+ " getrennt");
-				// the client is most likely disconnected lets remove it
-				it.remove();
-				// ex.printStackTrace();
+				metrics.startHttp(config.metrics);
+			} catch (IOException e) {
+				errorAndExit("Metriken konnten nicht gestartet werden: " + e.getMessage());
 			}
 		}
+
+		if (config.relay != null) {
+			// the events come from the upstream server, our clients get the same
+			// sequence numbers so they can switch between the servers. The relay
+			// thread connects, the clients are welcomed while the upstream server is
+			// down.
+			Relay relay = new Relay(config.relay, config.relayTls, loop);
+			Thread thread = new Thread(relay, "relay");
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			Map<String, String> channels = config.getChannels();
+			loop.setChannels(channels.keySet().toArray(new String[0]));
+			int channel = 0;
+			for (Map.Entry<String, String> entry : channels.entrySet()) {
+				startChannel(channel++, entry.getKey(), entry.getValue());
+			}
+		}
+
+		if (inherited != null) {
+			Log.info("Server gestartet auf dem Socket von systemd, Port {}", loop.getLocalPort());
+		} else {
+			Log.info("Server gestartet auf {}:{}", config.ip, config.port);
+		}
+		// systemd stops the server with SIGTERM, the clients then reconnect to the
+		// next server process right away instead of after their backoff
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "drain"));
+		// accept clients and send the messages until the process is stopped
+		loop.run();
+	}
+
+	/**
+	 * @return the listening socket which systemd passed as standard input, null
+	 *         if the server has to open its own
+	 */
+	private static ServerSocketChannel inheritedChannel() {
+		try {
+			Channel channel = System.inheritedChannel();
+			return channel instanceof ServerSocketChannel ? (ServerSocketChannel) channel : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void drain() {
+		try {
+			if (!loop.drain(DRAIN_WAIT)) {
+				System.err.println("Nicht alle Clients konnten vor dem Beenden getrennt werden");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * read the input of a channel and send its events to the clients
+	 *
+	 * @param channel channel number
+	 * @param name    channel name
+	 * @param input   gpio pin number or input source
+	 */
+	private void startChannel(int channel, String name, String input) {
+		// the contact bounces, only send one message per press
+		Debouncer debouncer = new Debouncer(config.debounceWindow, config.minHold, edge -> {
+			Log.info("Klingel {} festgestellt, unterdrückte Flanken: {}", name, debouncers.get(channel).getSuppressed());
+			// send message to all clients
+			broadcast(edge, channel);
+		});
+		debouncers.add(debouncer);
+		loop.getMetrics().add(debouncer);
+		try {
+			InputSource source = input.matches("[0-9]+") ? InputSource.create("gpio", Integer.parseInt(input))
+					: InputSource.create(input, config.pin);
+			source.start(debouncer::edge);
+		} catch (IllegalArgumentException | IOException e) {
+			errorAndExit("Eingabe von Kanal " + name + " konnte nicht geöffnet werden: " + e.getMessage());
+		}
+	}
+
+	private void broadcast(long edge, int channel) {
+		// never blocks, the event loop writes the message to the clients
+		loop.publish(Protocol.RING, Timestamps.toEpochMicros(edge), channel);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates edges without any gpio hardware. It either replays a recorded
+ * trace or produces a ring storm with a fixed rate.
+ *
+ * A trace file contains one edge per line, the time in microseconds since the
+ * start of the trace and the new level (1 or 0), e.g. "1500 1". Empty lines and
+ * lines starting with # are ignored.
+ */
+public class SimulatedInputSource implements InputSource {
+
+	// the contact is closed for this time on every generated ring
+	private static final long STORM_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private final Path trace;
+	private final long periodNanos;
+	private Thread thread;
+
+	private SimulatedInputSource(Path trace, long periodNanos) {
+		this.trace = trace;
+		this.periodNanos = periodNanos;
+	}
+
+	/**
+	 * @param trace file with the recorded edges
+	 * @return source which plays the trace once
+	 */
+	public static SimulatedInputSource replay(Path trace) {
+		return new SimulatedInputSource(trace, 0);
+	}
+
+	/**
+	 * @param ringsPerSecond number of rings generated per second
+	 * @return source which rings until it is closed
+	 */
+	public static SimulatedInputSource storm(double ringsPerSecond) {
+		return new SimulatedInputSource(null, Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ringsPerSecond)));
+	}
+
+	@Override
+	public void start(EdgeListener listener) throws IOException {
+		Runnable task;
+		if (trace != null) {
+			// read the whole trace first so that file io does not disturb the timing
+			long[] times = new long[64];
+			boolean[] levels = new boolean[64];
+			int n = 0;
+			try (BufferedReader reader = Files.newBufferedReader(trace, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					String[] parts = line.split("\\s+");
+					if (parts.length != 2 || !(parts[1].equals("0") || parts[1].equals("1"))) {
+						throw new IOException("Ungültige Zeile in " + trace + ": " + line);
+					}
+					if (n == times.length) {
+						times = Arrays.copyOf(times, n * 2);
+						levels = Arrays.copyOf(levels, n * 2);
+					}
+					try {
+						times[n] = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(parts[0]));
+					} catch (NumberFormatException e) {
+						throw new IOException("Ungültige Zeile in " + trace + ": " + line);
+					}
+					levels[n] = parts[1].equals("1");
+					n++;
+				}
+			}
+			final long[] replayTimes = times;
+			final boolean[] replayLevels = levels;
+			final int count = n;
+			task = () -> replay(listener, replayTimes, replayLevels, count);
+		} else {
+			task = () -> storm(listener);
+		}
+		thread = new Thread(task, "simulated-input");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void replay(EdgeListener listener, long[] times, boolean[] levels, int count) {
+		long start = System.nanoTime();
+		for (int i = 0; i < count && !Thread.currentThread().isInterrupted(); i++) {
+			listener.edge(levels[i], waitUntil(start + times[i]));
+		}
+	}
+
+	private void storm(EdgeListener listener) {
+		long next = System.nanoTime();
+		while (!Thread.currentThread().isInterrupted()) {
+			listener.edge(true, waitUntil(next));
+			listener.edge(false, waitUntil(next + Math.min(STORM_HOLD_NANOS, periodNanos / 2)));
+			next += periodNanos;
+		}
+	}
+
+	/**
+	 * @return the current {@link System#nanoTime()} once the deadline is reached
+	 */
+	private static long waitUntil(long deadline) {
+		long now;
+		while ((now = System.nanoTime()) < deadline && !Thread.currentThread().isInterrupted()) {
+			LockSupport.parkNanos(deadline - now);
+		}
+		return now;
+	}
+
+	@Override
+	public void close() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket for rate limits. Tokens are refilled continuously up to the
+ * burst size, each action takes one token.
+ *
+ * This class is not thread-safe.
+ */
+class TokenBucket {
+
+	private final long nanosPerToken;
+	private final int burst;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param rate  tokens per second
+	 * @param burst maximum number of tokens, the bucket starts full
+	 */
+	TokenBucket(int rate, int burst) {
+		this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(burst, tokens + (double) (now - lastRefill) / nanosPerToken);
+		lastRefill = now;
+	}
+
+	/**
+	 * @param now {@link System#nanoTime()}
+	 * @return true if a token is available
+	 */
+	boolean hasToken(long now) {
+		refill(now);
+		return tokens >= 1;
+	}
+
+	/**
+	 * take a token, {@link #hasToken(long)} must be checked first
+	 */
+	void take() {
+		tokens--;
+	}
+
+	/**
+	 * @param now {@link System#nanoTime()}
+	 * @return nanoseconds until the next token is available
+	 */
+	long nanosUntilToken(long now) {
+		refill(now);
+		return tokens >= 1 ? 0 : (long) ((1 - tokens) * nanosPerToken);
+	}
+}
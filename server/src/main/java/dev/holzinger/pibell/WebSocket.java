@@ -0,0 +1,233 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import dev.holzinger.pibell.common.Protocol;
+
+/**
+ * WebSocket (RFC 6455) framing for browser clients. Every protocol frame is
+ * sent unchanged as payload of one binary message, so a browser gets the same
+ * bytes as a raw client. Messages from the browser are decoded with a reusable
+ * object like {@link dev.holzinger.pibell.common.Frame}. Browsers send the
+ * small protocol frames in a single WebSocket frame, fragmented messages are
+ * not supported.
+ */
+final class WebSocket {
+
+	static final int CONTINUATION = 0x0;
+	static final int TEXT = 0x1;
+	static final int BINARY = 0x2;
+	static final int CLOSE = 0x8;
+	static final int PING = 0x9;
+	static final int PONG = 0xa;
+
+	// status codes of a close frame
+	static final int PROTOCOL_ERROR = 1002;
+	static final int UNSUPPORTED_DATA = 1003;
+	static final int MESSAGE_TOO_BIG = 1009;
+
+	/**
+	 * the only version of the protocol, older drafts are answered with 426
+	 */
+	static final String VERSION = "13";
+
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	/**
+	 * ping control frame, browsers answer it automatically
+	 */
+	static final ByteBuffer PING_FRAME = encode(PING, ByteBuffer.allocate(0));
+
+	/**
+	 * A message which is invalid or not supported, the connection is closed with
+	 * the status code.
+	 */
+	static final class CloseException extends ProtocolException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		CloseException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+
+		/**
+		 * @return status code for the close frame, e.g. {@link #PROTOCOL_ERROR}
+		 */
+		int getStatus() {
+			return status;
+		}
+	}
+
+	private int opcode;
+	private ByteBuffer payload;
+
+	/**
+	 * decode the next message from a browser if it is complete, the payload is
+	 * unmasked in place
+	 *
+	 * @param in buffer in read mode, the position is moved behind the message
+	 * @return false if the message is not complete yet
+	 * @throws CloseException if the message is invalid, fragmented or too big
+	 */
+	boolean read(ByteBuffer in) throws CloseException {
+		int start = in.position();
+		if (in.remaining() < 2) {
+			return false;
+		}
+		int first = in.get(start) & 0xff;
+		int second = in.get(start + 1) & 0xff;
+		int code = first & 0x0f;
+		if ((first & 0x70) != 0) {
+			throw new CloseException(PROTOCOL_ERROR, "WebSocket Erweiterung wurde nicht vereinbart");
+		}
+		if ((second & 0x80) == 0) {
+			throw new CloseException(PROTOCOL_ERROR, "WebSocket Nachricht ohne Maske");
+		}
+		if (code >= CLOSE) {
+			// control frames are never fragmented and carry at most 125 bytes
+			if (code > PONG || (first & 0x80) == 0 || (second & 0x7f) > 125) {
+				throw new CloseException(PROTOCOL_ERROR, "Ungültiger WebSocket Steuerrahmen");
+			}
+		} else if (code == CONTINUATION || (first & 0x80) == 0) {
+			throw new CloseException(UNSUPPORTED_DATA, "Fragmentierte WebSocket Nachrichten werden nicht unterstützt");
+		} else if (code != TEXT && code != BINARY) {
+			throw new CloseException(PROTOCOL_ERROR, "Unbekannter WebSocket Opcode " + code);
+		}
+		long length = second & 0x7f;
+		int offset = 2;
+		if (length == 126) {
+			if (in.remaining() < 4) {
+				return false;
+			}
+			length = in.getShort(start + 2) & 0xffff;
+			offset = 4;
+		} else if (length == 127) {
+			if (in.remaining() < 10) {
+				return false;
+			}
+			length = in.getLong(start + 2);
+			offset = 10;
+		}
+		if (length < 0 || length > Protocol.MAX_FRAME_SIZE) {
+			throw new CloseException(MESSAGE_TOO_BIG, "WebSocket Nachricht zu groß");
+		}
+		int mask = start + offset;
+		int data = mask + 4;
+		if (in.remaining() < data - start + length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			in.put(data + i, (byte) (in.get(data + i) ^ in.get(mask + (i & 3))));
+		}
+		opcode = code;
+		payload = in.duplicate();
+		payload.position(data).limit(data + (int) length);
+		in.position(data + (int) length);
+		return true;
+	}
+
+	/**
+	 * @return opcode of the last message, e.g. {@link #BINARY}
+	 */
+	int getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * @return unmasked payload of the last message, only valid until the input
+	 *         buffer is compacted
+	 */
+	ByteBuffer getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @param key value of the Sec-WebSocket-Key header
+	 * @return the response which accepts the upgrade
+	 */
+	static ByteBuffer upgrade(String key) {
+		String accept;
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			accept = Base64.getEncoder().encodeToString(sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			// every java runtime has SHA-1
+			throw new IllegalStateException(e);
+		}
+		return ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n" + "Sec-WebSocket-Accept: " + accept + "\r\n" + "\r\n")
+						.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return the response to an upgrade with another version than
+	 *         {@link #VERSION}
+	 */
+	static ByteBuffer upgradeRequired() {
+		return ByteBuffer.wrap(("HTTP/1.1 426 Upgrade Required\r\n" + "Sec-WebSocket-Version: " + VERSION + "\r\n"
+				+ "Content-Length: 0\r\n" + "Connection: close\r\n" + "\r\n").getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @param status status code, e.g. {@link #PROTOCOL_ERROR}
+	 * @return close message with the status code
+	 */
+	static ByteBuffer close(int status) {
+		ByteBuffer payload = ByteBuffer.allocate(2);
+		payload.putShort(0, (short) status);
+		return encode(CLOSE, payload);
+	}
+
+	/**
+	 * wrap a protocol frame in a binary message
+	 *
+	 * @param frame encoded frame, its position is not changed
+	 * @return read only direct buffer with the message
+	 */
+	static ByteBuffer wrap(ByteBuffer frame) {
+		return encode(BINARY, frame);
+	}
+
+	/**
+	 * @param opcode  message type
+	 * @param payload payload, its position is not changed
+	 * @return read only direct buffer with the unmasked message
+	 */
+	static ByteBuffer encode(int opcode, ByteBuffer payload) {
+		int length = payload.remaining();
+		ByteBuffer buffer = ByteBuffer.allocateDirect((length < 126 ? 2 : 4) + length);
+		buffer.put((byte) (0x80 | opcode));
+		if (length < 126) {
+			buffer.put((byte) length);
+		} else {
+			buffer.put((byte) 126);
+			buffer.putShort((short) length);
+		}
+		buffer.put(payload.duplicate());
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,271 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The queue of a connection and the overflow policies on a real socket. A
+ * frame bigger than the socket buffers stays partially written at the head of
+ * the queue, the small frames behind it are queued and read by the peer after
+ * the test.
+ */
+class ConnectionTest {
+
+	private static final int BIG = 1024 * 1024;
+	private static final int QUEUE_SIZE = 4;
+
+	private ServerSocketChannel server;
+	private SocketChannel peer;
+	private Selector selector;
+	private Connection client;
+
+	@BeforeEach
+	void connect() throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		peer = SocketChannel.open();
+		peer.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+		peer.connect(server.getLocalAddress());
+		SocketChannel channel = server.accept();
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+		channel.configureBlocking(false);
+		peer.configureBlocking(false);
+		selector = Selector.open();
+		client = new Connection(channel, QUEUE_SIZE);
+		client.key = channel.register(selector, SelectionKey.OP_READ, client);
+	}
+
+	@AfterEach
+	void close() throws IOException {
+		client.close();
+		peer.close();
+		selector.close();
+		server.close();
+	}
+
+	@Test
+	void sendQueuesUntilTheQueueIsFull() throws IOException {
+		block();
+		assertTrue(client.send(frame("E001")));
+		assertTrue(client.send(frame("E002")));
+		assertTrue(client.send(frame("E003")));
+		assertFalse(client.send(frame("E004")));
+		assertEquals(Arrays.asList("E001", "E002", "E003"), drain());
+	}
+
+	@Test
+	void dropOldestKeepsThePartiallyWrittenFrame() throws IOException {
+		block();
+		client.send(frame("E001"));
+		client.send(frame("E002"));
+		client.send(frame("E003"));
+		assertTrue(client.dropOldest(frame("E004"), false));
+		assertEquals(Arrays.asList("E002", "E003", "E004"), drain());
+	}
+
+	@Test
+	void dropOldestSkipsControlFrames() throws IOException {
+		block();
+		client.sendControl(frame("C001"));
+		client.send(frame("E001"));
+		client.send(frame("E002"));
+		assertTrue(client.dropOldest(frame("C002"), true));
+		assertEquals(Arrays.asList("C001", "E002", "C002"), drain());
+	}
+
+	@Test
+	void dropOldestFailsWithOnlyControlFrames() throws IOException {
+		block();
+		client.sendControl(frame("C001"));
+		client.sendControl(frame("C002"));
+		client.sendControl(frame("C003"));
+		assertFalse(client.dropOldest(frame("E001"), false));
+		assertEquals(Arrays.asList("C001", "C002", "C003"), drain());
+	}
+
+	@Test
+	void replaceNewestEvent() throws IOException {
+		block();
+		client.send(frame("E001"));
+		client.send(frame("E002"));
+		client.send(frame("E003"));
+		assertTrue(client.replaceNewest(frame("E004")));
+		assertEquals(Arrays.asList("E001", "E002", "E004"), drain());
+	}
+
+	@Test
+	void replaceNewestKeepsControlFrames() throws IOException {
+		block();
+		client.send(frame("E001"));
+		client.send(frame("E002"));
+		client.sendControl(frame("C001"));
+		assertFalse(client.replaceNewest(frame("E003")));
+		assertEquals(Arrays.asList("E001", "E002", "C001"), drain());
+	}
+
+	@Test
+	void queuedFrameIsAView() throws IOException {
+		block();
+		ByteBuffer shared = frame("E001");
+		client.send(shared);
+		// the position of the shared frame is not changed for the next client
+		assertEquals(0, shared.position());
+		assertEquals(Arrays.asList("E001"), drain());
+	}
+
+	@Test
+	void dropOldestPolicy() throws IOException {
+		ClientRegistry clients = new ClientRegistry(OverflowPolicy.DROP_OLDEST);
+		block();
+		for (int i = 1; i <= 5; i++) {
+			assertTrue(clients.send(client, frame("E00" + i)));
+		}
+		assertEquals(2, clients.getDropped());
+		assertEquals(Arrays.asList("E003", "E004", "E005"), drain());
+	}
+
+	@Test
+	void coalescePolicy() throws IOException {
+		ClientRegistry clients = new ClientRegistry(OverflowPolicy.COALESCE);
+		block();
+		for (int i = 1; i <= 5; i++) {
+			assertTrue(clients.send(client, frame("E00" + i)));
+		}
+		assertEquals(2, clients.getCoalesced());
+		assertEquals(Arrays.asList("E001", "E002", "E005"), drain());
+	}
+
+	@Test
+	void coalescePolicyDropsTheEventBehindAControlFrame() throws IOException {
+		ClientRegistry clients = new ClientRegistry(OverflowPolicy.COALESCE);
+		block();
+		clients.send(client, frame("E001"));
+		clients.send(client, frame("E002"));
+		clients.sendControl(client, frame("C001"));
+		assertTrue(clients.send(client, frame("E003")));
+		assertEquals(0, clients.getCoalesced());
+		assertEquals(1, clients.getDropped());
+		assertEquals(Arrays.asList("E001", "E002", "C001"), drain());
+	}
+
+	@Test
+	void disconnectPolicy() throws IOException {
+		ClientRegistry clients = new ClientRegistry(OverflowPolicy.DISCONNECT);
+		block();
+		for (int i = 1; i <= 3; i++) {
+			assertTrue(clients.send(client, frame("E00" + i)));
+		}
+		assertFalse(clients.send(client, frame("E004")));
+		assertEquals(1, clients.getEvicted());
+	}
+
+	@Test
+	void controlFrameReplacesAnEventWithAnyPolicy() throws IOException {
+		ClientRegistry clients = new ClientRegistry(OverflowPolicy.DISCONNECT);
+		block();
+		clients.send(client, frame("E001"));
+		clients.send(client, frame("E002"));
+		clients.send(client, frame("E003"));
+		assertTrue(clients.sendControl(client, frame("C001")));
+		assertEquals(1, clients.getDropped());
+		assertEquals(0, clients.getEvicted());
+		assertEquals(Arrays.asList("E002", "E003", "C001"), drain());
+	}
+
+	@Test
+	void controlFrameEvictsAQueueFullOfControlFrames() throws IOException {
+		ClientRegistry clients = new ClientRegistry(OverflowPolicy.DROP_OLDEST);
+		block();
+		for (int i = 1; i <= 3; i++) {
+			assertTrue(clients.sendControl(client, frame("C00" + i)));
+		}
+		assertFalse(clients.sendControl(client, frame("C004")));
+		assertEquals(1, clients.getEvicted());
+	}
+
+	private static ByteBuffer frame(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * send a frame which does not fit into the socket buffers, it stays
+	 * partially written at the head of the queue
+	 */
+	private void block() throws IOException {
+		assertTrue(client.send(ByteBuffer.allocate(BIG)));
+		assertFalse(client.isIdle());
+	}
+
+	/**
+	 * let the peer read until the queue is written
+	 *
+	 * @return the small frames after the big one
+	 */
+	private List<String> drain() throws IOException {
+		ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+		ByteBuffer tail = ByteBuffer.allocate(1024);
+		long total = 0;
+		boolean idle = false;
+		while (true) {
+			in.clear();
+			int n = peer.read(in);
+			if (n > 0) {
+				in.flip();
+				// only the part after the big frame is kept
+				int skip = (int) Math.max(0, Math.min(n, BIG - total));
+				in.position(skip);
+				tail.put(in);
+				total += n;
+			} else if (idle) {
+				break;
+			}
+			if (!idle) {
+				client.flush();
+				idle = client.isIdle();
+			}
+		}
+		tail.flip();
+		assertEquals(0, tail.remaining() % 4);
+		List<String> frames = new ArrayList<String>();
+		byte[] text = new byte[4];
+		while (tail.hasRemaining()) {
+			tail.get(text);
+			frames.add(new String(text, StandardCharsets.US_ASCII));
+		}
+		return frames;
+	}
+}
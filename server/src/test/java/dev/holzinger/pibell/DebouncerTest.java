@@ -0,0 +1,117 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class DebouncerTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final List<Long> rings = new ArrayList<Long>();
+
+	@Test
+	void bouncingContactRingsOnce() {
+		Debouncer debouncer = new Debouncer(300, 0, rings::add);
+		long t = 1000 * MS;
+		debouncer.edge(true, t);
+		debouncer.edge(false, t + 1 * MS);
+		debouncer.edge(true, t + 2 * MS);
+		debouncer.edge(false, t + 3 * MS);
+		debouncer.edge(true, t + 4 * MS);
+		assertEquals(Arrays.asList(t), rings);
+		assertEquals(2, debouncer.getSuppressed());
+	}
+
+	@Test
+	void ringsAgainAfterTheWindow() {
+		Debouncer debouncer = new Debouncer(300, 0, rings::add);
+		long t = 1000 * MS;
+		debouncer.edge(true, t);
+		debouncer.edge(false, t + 100 * MS);
+		debouncer.edge(true, t + 299 * MS);
+		debouncer.edge(false, t + 305 * MS);
+		debouncer.edge(true, t + 300 * MS + 299 * MS);
+		assertEquals(Arrays.asList(t, t + 599 * MS), rings);
+	}
+
+	@Test
+	void releaseDoesNotRing() {
+		Debouncer debouncer = new Debouncer(300, 0, rings::add);
+		debouncer.edge(false, 1000 * MS);
+		assertTrue(rings.isEmpty());
+		assertEquals(0, debouncer.getSuppressed());
+	}
+
+	@Test
+	void repeatedHighLevelIsSuppressed() {
+		Debouncer debouncer = new Debouncer(0, 0, rings::add);
+		debouncer.edge(true, 1000 * MS);
+		// the falling edge was missed
+		debouncer.edge(true, 2000 * MS);
+		assertEquals(1, rings.size());
+		assertEquals(1, debouncer.getSuppressed());
+	}
+
+	@Test
+	void holdTimeFiltersSpikes() throws InterruptedException {
+		BlockingQueue<Long> held = new ArrayBlockingQueue<Long>(4);
+		Debouncer debouncer = new Debouncer(0, 20, held::add);
+		try {
+			long t = System.nanoTime();
+			// a spike which is shorter than the hold time
+			debouncer.edge(true, t);
+			debouncer.edge(false, t + MS);
+			assertEquals(null, held.poll(100, TimeUnit.MILLISECONDS));
+			assertEquals(1, debouncer.getSuppressed());
+
+			long press = System.nanoTime();
+			debouncer.edge(true, press);
+			// the ring carries the time of the rising edge, not of the check
+			assertEquals(press, held.poll(1, TimeUnit.SECONDS).longValue());
+		} finally {
+			debouncer.close();
+		}
+	}
+
+	@Test
+	void recentEdgesOldestFirst() {
+		Debouncer debouncer = new Debouncer(300, 0, rings::add);
+		for (int i = 0; i < 300; i++) {
+			debouncer.edge(i % 2 == 0, i);
+		}
+		assertEquals(300, debouncer.getEdgeCount());
+		long[] times = new long[3];
+		boolean[] levels = new boolean[3];
+		assertEquals(3, debouncer.recentEdges(times, levels));
+		assertArrayEquals(new long[] { 297, 298, 299 }, times);
+		assertFalse(levels[0]);
+		assertTrue(levels[1]);
+		assertFalse(levels[2]);
+	}
+}
@@ -0,0 +1,130 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EdgeStreamInputSourceTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	// level and time of the received edges, e.g. "1@42"
+	private final List<String> edges = new ArrayList<String>();
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void levelOnlyGetsTheReadTime() {
+		EdgeStreamInputSource.edge(this::record, "1", 42);
+		EdgeStreamInputSource.edge(this::record, "0", 43);
+		assertEquals(Arrays.asList("1@42", "0@43"), edges);
+	}
+
+	@Test
+	void monotonicTimeIsUsed() {
+		long now = 5123 * SECOND + 300000000;
+		EdgeStreamInputSource.edge(this::record, "1 5123 250000000", now);
+		// any whitespace separates the columns
+		EdgeStreamInputSource.edge(this::record, "0\t5123  290000000", now);
+		assertEquals(Arrays.asList("1@" + (5123 * SECOND + 250000000), "0@" + (5123 * SECOND + 290000000)), edges);
+	}
+
+	@Test
+	void timeOfAnotherClockIsReplaced() {
+		long now = 5123 * SECOND;
+		// CLOCK_REALTIME of an older kernel
+		EdgeStreamInputSource.edge(this::record, "1 1700000000 0", now);
+		// just at the limit and just below it
+		EdgeStreamInputSource.edge(this::record, "0 5122 0", now);
+		EdgeStreamInputSource.edge(this::record, "1 5124 0", now);
+		EdgeStreamInputSource.edge(this::record, "0 5122 1", now);
+		assertEquals(Arrays.asList("1@" + now, "0@" + now, "1@" + now, "0@" + (5122 * SECOND + 1)), edges);
+	}
+
+	@Test
+	void invalidLinesAreRejected() {
+		for (String line : new String[] { "2", "high", "1 5123", "1 5123 0 0", "1 x 0", "1 5123 y", "-1" }) {
+			assertThrows(IllegalArgumentException.class, () -> EdgeStreamInputSource.edge(this::record, line, 0),
+					line);
+		}
+		assertEquals(0, edges.size());
+	}
+
+	@Test
+	void fileIsReadOnce() throws IOException, InterruptedException {
+		long now = System.nanoTime();
+		String time = (now / SECOND) + " " + (now % SECOND);
+		Path file = directory.resolve("edges");
+		Files.write(file, Arrays.asList("# bell at the front door", "", "1 " + time, "invalid", "  0  ", "1"),
+				StandardCharsets.US_ASCII);
+
+		BlockingQueue<String> received = new ArrayBlockingQueue<String>(8);
+		EdgeStreamInputSource source = EdgeStreamInputSource.file(file);
+		source.start((high, nanos) -> received.add(high ? "1" : "0"));
+		try {
+			assertEquals("1", received.poll(5, TimeUnit.SECONDS));
+			assertEquals("0", received.poll(5, TimeUnit.SECONDS));
+			assertEquals("1", received.poll(5, TimeUnit.SECONDS));
+			// a regular file is not opened again
+			assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	void fileKeepsTheTimeOfTheLine() throws IOException, InterruptedException {
+		long now = System.nanoTime();
+		Path file = directory.resolve("edges");
+		Files.write(file, Arrays.asList("1 " + (now / SECOND) + " " + (now % SECOND)), StandardCharsets.US_ASCII);
+
+		BlockingQueue<Long> received = new ArrayBlockingQueue<Long>(1);
+		EdgeStreamInputSource source = EdgeStreamInputSource.file(file);
+		source.start((high, nanos) -> received.add(nanos));
+		try {
+			assertEquals(now, received.poll(5, TimeUnit.SECONDS).longValue());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	void missingFileFailsOnStart() {
+		EdgeStreamInputSource source = EdgeStreamInputSource.file(directory.resolve("missing"));
+		assertThrows(IOException.class, () -> source.start(this::record));
+	}
+
+	private void record(boolean high, long nanos) {
+		edges.add((high ? "1" : "0") + "@" + nanos);
+	}
+}
@@ -0,0 +1,222 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.holzinger.pibell.common.Protocol;
+
+class JournalTest {
+
+	// events which fill more than one segment of 1 MiB
+	private static final int SEGMENT_EVENTS = 1024 * 1024 / Protocol.EVENT_SIZE + 1;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void replayAfterSequence() throws IOException {
+		Journal journal = new Journal(directory);
+		for (long sequence = 1; sequence <= 10; sequence++) {
+			journal.append(event(sequence));
+		}
+		assertEquals(10, journal.getLastSequence());
+		assertEquals(sequences(8, 10), replay(journal, 7));
+		assertTrue(replay(journal, 10).isEmpty());
+		journal.close();
+	}
+
+	@Test
+	void appendDoesNotMoveTheFrame() throws IOException {
+		Journal journal = new Journal(directory);
+		ByteBuffer frame = event(1);
+		journal.append(frame);
+		assertEquals(0, frame.position());
+		assertEquals(Protocol.EVENT_SIZE, frame.remaining());
+		journal.close();
+	}
+
+	@Test
+	void recoverAfterRestart() throws IOException {
+		Journal journal = new Journal(directory);
+		for (long sequence = 1; sequence <= 5; sequence++) {
+			journal.append(event(sequence));
+		}
+		journal.close();
+
+		journal = new Journal(directory);
+		assertEquals(5, journal.getLastSequence());
+		journal.append(event(6));
+		assertEquals(sequences(1, 6), replay(journal, 0));
+		journal.close();
+	}
+
+	@Test
+	void recoverEmptyDirectory() throws IOException {
+		Journal journal = new Journal(directory);
+		assertEquals(0, journal.getLastSequence());
+		assertTrue(replay(journal, 0).isEmpty());
+		journal.close();
+	}
+
+	@Test
+	void recoverIgnoresAnInterruptedWrite() throws IOException {
+		Journal journal = new Journal(directory);
+		for (long sequence = 1; sequence <= 3; sequence++) {
+			journal.append(event(sequence));
+		}
+		journal.close();
+		// the length of a fourth frame was written, but not its type
+		try (FileChannel file = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+			ByteBuffer partial = ByteBuffer.allocate(3);
+			partial.putShort((short) (Protocol.EVENT_SIZE - 2)).put(Protocol.VERSION).flip();
+			file.write(partial, 3 * Protocol.EVENT_SIZE);
+		}
+
+		journal = new Journal(directory);
+		assertEquals(3, journal.getLastSequence());
+		assertEquals(sequences(1, 3), replay(journal, 0));
+		journal.close();
+	}
+
+	@Test
+	void recoverContinuesInTheNewestSegment() throws IOException {
+		Journal journal = new Journal(directory);
+		long last = SEGMENT_EVENTS + 10;
+		for (long sequence = 1; sequence <= last; sequence++) {
+			journal.append(event(sequence));
+		}
+		journal.close();
+		assertEquals(2, segments().size());
+
+		journal = new Journal(directory);
+		assertEquals(last, journal.getLastSequence());
+		assertEquals(sequences(last - 20, last), replay(journal, last - 21));
+		journal.close();
+	}
+
+	@Test
+	void rotationKeepsTheNewestSegments() throws IOException {
+		Journal journal = new Journal(directory);
+		long last = 5L * SEGMENT_EVENTS;
+		for (long sequence = 1; sequence <= last; sequence++) {
+			journal.append(event(sequence));
+		}
+		List<Long> replayed = replay(journal, 0);
+		// the writer thread deleted the old segments when it is closed
+		journal.close();
+		List<Path> segments = segments();
+		assertEquals(4, segments.size());
+		// the segment files are named after their first event
+		long first = Long.parseLong(segments.get(0).getFileName().toString().replaceAll("\\D", ""));
+		assertEquals(first, replayed.get(0).longValue());
+		assertEquals(last - first + 1, replayed.size());
+		assertEquals(last, replayed.get(replayed.size() - 1).longValue());
+	}
+
+	@Test
+	void segmentIsKeptWhileAReplayReadsIt() throws IOException {
+		Journal journal = new Journal(directory);
+		long sequence = 0;
+		while (segments().size() < 4) {
+			journal.append(event(++sequence));
+		}
+		Path oldest = segments().get(0);
+		long[] next = { sequence };
+		boolean[] existed = { false };
+		journal.replay(0, frame -> {
+			try {
+				// fill the newest segment so that the oldest one drops out
+				for (int i = 0; i < SEGMENT_EVENTS; i++) {
+					journal.append(event(++next[0]));
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			existed[0] = Files.exists(oldest);
+			return false;
+		});
+		journal.close();
+		assertTrue(existed[0]);
+		assertFalse(Files.exists(oldest));
+		assertEquals(4, segments().size());
+	}
+
+	@Test
+	void spareIsNotRecoveredAsSegment() throws IOException {
+		Journal journal = new Journal(directory);
+		journal.close();
+		// the writer created the file of the next segment, but it holds no events
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(1, files.count());
+		}
+		assertTrue(segments().isEmpty());
+
+		journal = new Journal(directory);
+		assertEquals(0, journal.getLastSequence());
+		journal.append(event(1));
+		assertEquals(sequences(1, 1), replay(journal, 0));
+		journal.close();
+		assertEquals(1, segments().size());
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(f -> f.getFileName().toString().endsWith(".log")).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static ByteBuffer event(long sequence) {
+		ByteBuffer frame = ByteBuffer.allocate(Protocol.EVENT_SIZE);
+		Protocol.writeEvent(frame, Protocol.RING, sequence, sequence * 1000, 0);
+		frame.flip();
+		return frame;
+	}
+
+	private static List<Long> replay(Journal journal, long after) {
+		List<Long> sequences = new ArrayList<Long>();
+		journal.replay(after, frame -> {
+			sequences.add(frame.getLong(frame.position() + Protocol.HEADER_SIZE));
+			return true;
+		});
+		return sequences;
+	}
+
+	private static List<Long> sequences(long first, long last) {
+		List<Long> sequences = new ArrayList<Long>();
+		for (long sequence = first; sequence <= last; sequence++) {
+			sequences.add(sequence);
+		}
+		return sequences;
+	}
+}
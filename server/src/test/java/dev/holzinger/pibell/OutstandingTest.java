@@ -0,0 +1,81 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class OutstandingTest {
+
+	private final Outstanding outstanding = new Outstanding(4);
+
+	@Test
+	void trackAndAcknowledge() {
+		assertTrue(outstanding.isEmpty());
+		assertTrue(outstanding.add(7, 700, 1000));
+		assertFalse(outstanding.isEmpty());
+		int slot = outstanding.find(7);
+		assertEquals(7, outstanding.getSequence(slot));
+		assertEquals(700, outstanding.getEdge(slot));
+		assertEquals(1000, outstanding.getFirstSent(slot));
+		assertEquals(1, outstanding.getAttempts(slot));
+
+		outstanding.remove(slot);
+		assertTrue(outstanding.isEmpty());
+		assertEquals(-1, outstanding.find(7));
+		// removing twice does not break the count
+		outstanding.remove(slot);
+		assertTrue(outstanding.isEmpty());
+	}
+
+	@Test
+	void retransmissionKeepsTheFirstSend() {
+		outstanding.add(7, 700, 1000);
+		assertTrue(outstanding.add(7, 0, 2000));
+		int slot = outstanding.find(7);
+		assertEquals(1000, outstanding.getFirstSent(slot));
+		assertEquals(2000, outstanding.getLastSent(slot));
+		assertEquals(700, outstanding.getEdge(slot));
+		assertEquals(2, outstanding.getAttempts(slot));
+	}
+
+	@Test
+	void fullRingPushesOutTheOldest() {
+		for (long sequence = 1; sequence <= 4; sequence++) {
+			assertTrue(outstanding.add(sequence, 0, sequence));
+		}
+		// the slot of 1 is reused
+		assertFalse(outstanding.add(5, 0, 5));
+		assertEquals(-1, outstanding.find(1));
+		assertTrue(outstanding.find(5) >= 0);
+		for (long sequence = 2; sequence <= 5; sequence++) {
+			outstanding.remove(outstanding.find(sequence));
+		}
+		assertTrue(outstanding.isEmpty());
+	}
+
+	@Test
+	void unknownSequence() {
+		assertEquals(-1, outstanding.find(0));
+		assertEquals(-1, outstanding.find(3));
+		outstanding.add(3, 0, 1);
+		assertEquals(-1, outstanding.find(7));
+		assertEquals(4, outstanding.capacity());
+	}
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	void startsWithTheBurst() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(bucket.hasToken(now));
+			bucket.take();
+		}
+		assertFalse(bucket.hasToken(now));
+	}
+
+	@Test
+	void refillsWithTheRate() {
+		TokenBucket bucket = new TokenBucket(10, 1);
+		long now = System.nanoTime();
+		bucket.hasToken(now);
+		bucket.take();
+		assertEquals(100 * MS, bucket.nanosUntilToken(now));
+		assertEquals(40 * MS, bucket.nanosUntilToken(now + 60 * MS));
+		assertFalse(bucket.hasToken(now + 99 * MS));
+		assertTrue(bucket.hasToken(now + 100 * MS));
+		assertEquals(0, bucket.nanosUntilToken(now + 100 * MS));
+	}
+
+	@Test
+	void refillStopsAtTheBurst() {
+		TokenBucket bucket = new TokenBucket(100, 2);
+		long now = System.nanoTime();
+		bucket.hasToken(now);
+		bucket.take();
+		bucket.take();
+		// a long pause refills only the burst
+		long later = now + TimeUnit.SECONDS.toNanos(60);
+		for (int i = 0; i < 2; i++) {
+			assertTrue(bucket.hasToken(later));
+			bucket.take();
+		}
+		assertFalse(bucket.hasToken(later));
+	}
+}
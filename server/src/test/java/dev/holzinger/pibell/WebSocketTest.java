@@ -0,0 +1,177 @@
+// Copyright (C) 2021 Paul Holzinger
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package dev.holzinger.pibell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class WebSocketTest {
+
+	private static final byte[] MASK = { 1, 2, 3, 4 };
+
+	private final WebSocket webSocket = new WebSocket();
+
+	@Test
+	void maskedBinaryMessage() throws Exception {
+		ByteBuffer in = message(0x80 | WebSocket.BINARY, new byte[] { 10, 20, 30 });
+		assertTrue(webSocket.read(in));
+		assertEquals(WebSocket.BINARY, webSocket.getOpcode());
+		ByteBuffer payload = webSocket.getPayload();
+		assertEquals(3, payload.remaining());
+		assertEquals(10, payload.get());
+		assertEquals(20, payload.get());
+		assertEquals(30, payload.get());
+		assertFalse(in.hasRemaining());
+	}
+
+	@Test
+	void extendedLength() throws Exception {
+		byte[] payload = new byte[300];
+		payload[299] = 7;
+		assertTrue(webSocket.read(message(0x80 | WebSocket.BINARY, payload)));
+		assertEquals(300, webSocket.getPayload().remaining());
+		assertEquals(7, webSocket.getPayload().get(webSocket.getPayload().limit() - 1));
+	}
+
+	@Test
+	void incompleteMessage() throws Exception {
+		ByteBuffer in = message(0x80 | WebSocket.BINARY, new byte[] { 10, 20, 30 });
+		in.limit(in.limit() - 1);
+		assertFalse(webSocket.read(in));
+		assertEquals(0, in.position());
+	}
+
+	@Test
+	void pingIsAControlMessage() throws Exception {
+		assertTrue(webSocket.read(message(0x80 | WebSocket.PING, new byte[] { 1 })));
+		assertEquals(WebSocket.PING, webSocket.getOpcode());
+	}
+
+	@Test
+	void unmaskedMessageIsAProtocolError() {
+		ByteBuffer in = ByteBuffer.wrap(new byte[] { (byte) (0x80 | WebSocket.BINARY), 1, 0 });
+		assertStatus(WebSocket.PROTOCOL_ERROR, in);
+	}
+
+	@Test
+	void fragmentedMessageIsNotSupported() {
+		assertStatus(WebSocket.UNSUPPORTED_DATA, message(WebSocket.BINARY, new byte[] { 1 }));
+	}
+
+	@Test
+	void continuationIsNotSupported() {
+		assertStatus(WebSocket.UNSUPPORTED_DATA, message(0x80 | WebSocket.CONTINUATION, new byte[] { 1 }));
+	}
+
+	@Test
+	void fragmentedControlMessageIsAProtocolError() {
+		assertStatus(WebSocket.PROTOCOL_ERROR, message(WebSocket.PING, new byte[] { 1 }));
+	}
+
+	@Test
+	void longControlMessageIsAProtocolError() {
+		assertStatus(WebSocket.PROTOCOL_ERROR, message(0x80 | WebSocket.PING, new byte[126]));
+	}
+
+	@Test
+	void reservedBitsAreAProtocolError() {
+		assertStatus(WebSocket.PROTOCOL_ERROR, message(0x80 | 0x40 | WebSocket.BINARY, new byte[] { 1 }));
+	}
+
+	@Test
+	void unknownOpcodeIsAProtocolError() {
+		assertStatus(WebSocket.PROTOCOL_ERROR, message(0x80 | 0x3, new byte[] { 1 }));
+	}
+
+	@Test
+	void tooBigMessage() {
+		ByteBuffer in = ByteBuffer.allocate(16);
+		in.put((byte) (0x80 | WebSocket.BINARY)).put((byte) (0x80 | 127)).putLong(1L << 20).put(MASK);
+		in.flip();
+		assertStatus(WebSocket.MESSAGE_TOO_BIG, in);
+	}
+
+	@Test
+	void upgradeAcceptsTheKey() {
+		// example of RFC 6455
+		String response = text(WebSocket.upgrade("dGhlIHNhbXBsZSBub25jZQ=="));
+		assertTrue(response.startsWith("HTTP/1.1 101 "));
+		assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+	}
+
+	@Test
+	void upgradeRequiredNamesTheVersion() {
+		String response = text(WebSocket.upgradeRequired());
+		assertTrue(response.startsWith("HTTP/1.1 426 "));
+		assertTrue(response.contains("Sec-WebSocket-Version: 13\r\n"));
+	}
+
+	@Test
+	void wrapFrame() {
+		ByteBuffer frame = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+		ByteBuffer message = WebSocket.wrap(frame);
+		assertEquals(0, frame.position());
+		assertEquals(5, message.remaining());
+		assertEquals((byte) (0x80 | WebSocket.BINARY), message.get(0));
+		assertEquals(3, message.get(1));
+		assertEquals(3, message.get(4));
+	}
+
+	@Test
+	void closeWithStatus() {
+		ByteBuffer message = WebSocket.close(WebSocket.UNSUPPORTED_DATA);
+		assertEquals((byte) (0x80 | WebSocket.CLOSE), message.get(0));
+		assertEquals(2, message.get(1));
+		assertEquals(WebSocket.UNSUPPORTED_DATA, message.getShort(2));
+	}
+
+	private void assertStatus(int status, ByteBuffer in) {
+		WebSocket.CloseException e = assertThrows(WebSocket.CloseException.class, () -> webSocket.read(in));
+		assertEquals(status, e.getStatus());
+	}
+
+	/**
+	 * @return masked message like a browser sends it
+	 */
+	private static ByteBuffer message(int first, byte[] payload) {
+		ByteBuffer in = ByteBuffer.allocate(payload.length + 8);
+		in.put((byte) first);
+		if (payload.length < 126) {
+			in.put((byte) (0x80 | payload.length));
+		} else {
+			in.put((byte) (0x80 | 126)).putShort((short) payload.length);
+		}
+		in.put(MASK);
+		for (int i = 0; i < payload.length; i++) {
+			in.put((byte) (payload[i] ^ MASK[i & 3]));
+		}
+		in.flip();
+		return in;
+	}
+
+	private static String text(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+}